@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.BPlusTree;
+import org.fejoa.chunkstore.HashValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * BPlusTree get latency with and without the node cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BPlusTreeGetBenchmark {
+    final static int N_ENTRIES = 100000;
+    final static int N_LOOKUPS = 100000;
+
+    // 4096 is BPlusTree.DEFAULT_NODE_CACHE_CAPACITY
+    @Param({"0", "4096"})
+    int nodeCacheCapacity;
+
+    File dir;
+    RandomAccessFile file;
+    BPlusTree tree;
+    final List<byte[]> keys = new ArrayList<>();
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("bPlusTreeGetBenchmark");
+        file = new RandomAccessFile(new File(dir, "index"), "rw");
+        tree = new BPlusTree(file);
+        tree.create(32, 1024);
+        List<HashValue> hashes = new ArrayList<>(N_ENTRIES);
+        List<Long> values = new ArrayList<>(N_ENTRIES);
+        for (int i = 0; i < N_ENTRIES; i++) {
+            hashes.add(new HashValue(BenchmarkSupport.hash(i)));
+            values.add((long)i + 1);
+        }
+        tree.putAll(hashes, values);
+        tree.setNodeCacheCapacity(nodeCacheCapacity);
+
+        Random random = new Random(1);
+        for (int i = 0; i < N_LOOKUPS; i++)
+            keys.add(BenchmarkSupport.hash(random.nextInt(N_ENTRIES)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        file.close();
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public Long get() throws IOException {
+        next = (next + 1) % N_LOOKUPS;
+        return tree.get(keys.get(next));
+    }
+}
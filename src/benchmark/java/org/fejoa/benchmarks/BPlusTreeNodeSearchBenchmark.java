@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.BPlusTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Search in a full BPlusTree node: the previous search (BigInteger keys and a linear scan) against the in place binary
+ * search.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BPlusTreeNodeSearchBenchmark {
+    // keys of a full node with a 1024 byte tile
+    final static int N_NODE_KEYS = 25;
+    final static int N_SEARCH_KEYS = 1000;
+
+    final List<byte[]> nodeKeys = new ArrayList<>();
+    final List<byte[]> searchKeys = new ArrayList<>();
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1);
+        for (int i = 0; i < N_NODE_KEYS; i++)
+            nodeKeys.add(BenchmarkSupport.randomBytes(random, 32));
+        Collections.sort(nodeKeys, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return BPlusTree.compareKeys(a, b);
+            }
+        });
+        for (int i = 0; i < N_SEARCH_KEYS; i++)
+            searchKeys.add(BenchmarkSupport.randomBytes(random, 32));
+    }
+
+    @Benchmark
+    public int linearBigIntegerSearch() {
+        next = (next + 1) % N_SEARCH_KEYS;
+        BigInteger keyNumber = new BigInteger(searchKeys.get(next));
+        for (int i = 0; i < nodeKeys.size(); i++) {
+            if (new BigInteger(nodeKeys.get(i)).compareTo(keyNumber) >= 0)
+                return i;
+        }
+        return nodeKeys.size();
+    }
+
+    @Benchmark
+    public int binarySearch() {
+        next = (next + 1) % N_SEARCH_KEYS;
+        byte[] key = searchKeys.get(next);
+        int low = 0;
+        int high = nodeKeys.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (BPlusTree.compareKeys(nodeKeys.get(middle), key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+}
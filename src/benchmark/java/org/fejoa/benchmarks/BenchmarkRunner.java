@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+
+/**
+ * Runs the JMH benchmarks and writes the results as JSON so that runs can be compared.
+ *
+ * Usage: BenchmarkRunner result.json [JMH options]
+ */
+public class BenchmarkRunner {
+    static public void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BenchmarkRunner result.json [JMH options]");
+            System.exit(1);
+        }
+        Options commandLineOptions = new CommandLineOptions(Arrays.copyOfRange(args, 1, args.length));
+        Options options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .resultFormat(ResultFormatType.JSON)
+                .result(args[0])
+                .build();
+        new Runner(options).run();
+    }
+}
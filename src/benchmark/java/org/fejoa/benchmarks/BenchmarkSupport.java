@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.*;
+import org.fejoa.library.crypto.CryptoException;
+import org.fejoa.library.crypto.CryptoHelper;
+import org.fejoa.library.support.StorageLib;
+import org.fejoa.library.support.StreamHelper;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Synthetic data and chunk accessors shared by the benchmarks.
+ */
+class BenchmarkSupport {
+    final static int IV_SIZE = 16;
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs())
+            throw new IOException("Failed to create " + dir.getPath());
+        return dir;
+    }
+
+    static void delete(File dir) {
+        if (dir != null)
+            StorageLib.recursiveDeleteFile(dir);
+    }
+
+    static byte[] randomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    static byte[] hash(long i) {
+        return CryptoHelper.sha256Hash(("entry " + i).getBytes());
+    }
+
+    /**
+     * Keeps the chunks in memory, e.g. to measure the container code without the store.
+     */
+    static IChunkAccessor memoryAccessor() {
+        return new IChunkAccessor() {
+            final Map<HashValue, byte[]> chunks = new ConcurrentHashMap<>();
+
+            @Override
+            public DataInputStream getChunk(BoxPointer hash) throws IOException {
+                byte[] data = chunks.get(hash.getBoxHash());
+                if (data == null)
+                    throw new IOException("Missing chunk");
+                return new DataInputStream(new ByteArrayInputStream(data));
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data) throws IOException {
+                HashValue hash = new HashValue(CryptoHelper.sha256Hash(data));
+                boolean wasInDatabase = chunks.put(hash, data) != null;
+                return new PutResult<>(hash, wasInDatabase);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+        };
+    }
+
+    /**
+     * Encrypts the chunks with AES/CTR before passing them on, like an encrypting repository accessor. The IV is
+     * derived from the data and stored in front of the box so that equal chunks give equal boxes.
+     */
+    static IChunkAccessor encryptingAccessor(final IChunkAccessor accessor) {
+        final SecretKeySpec key = new SecretKeySpec(Arrays.copyOf(hash(0), 16), "AES");
+        return new IChunkAccessor() {
+            private byte[] crypt(int mode, byte[] iv, byte[] data, int offset) throws CryptoException {
+                try {
+                    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                    cipher.init(mode, key, new IvParameterSpec(iv));
+                    return cipher.doFinal(data, offset, data.length - offset);
+                } catch (GeneralSecurityException e) {
+                    throw new CryptoException(e.getMessage());
+                }
+            }
+
+            @Override
+            public DataInputStream getChunk(BoxPointer hash) throws IOException, CryptoException {
+                byte[] box = StreamHelper.readAll(accessor.getChunk(hash));
+                byte[] iv = Arrays.copyOf(box, IV_SIZE);
+                return new DataInputStream(new ByteArrayInputStream(crypt(Cipher.DECRYPT_MODE, iv, box, IV_SIZE)));
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data) throws IOException, CryptoException {
+                byte[] iv = Arrays.copyOf(CryptoHelper.sha256Hash(data), IV_SIZE);
+                byte[] encrypted = crypt(Cipher.ENCRYPT_MODE, iv, data, 0);
+                byte[] box = Arrays.copyOf(iv, IV_SIZE + encrypted.length);
+                System.arraycopy(encrypted, 0, box, IV_SIZE, encrypted.length);
+                return accessor.putChunk(box);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+                accessor.releaseChunk(data);
+            }
+        };
+    }
+
+    /**
+     * Adds a fixed latency to each chunk read, e.g. to simulate a remote store.
+     */
+    static IChunkAccessor delayedAccessor(final IChunkAccessor accessor, final long latencyMicros) {
+        return new IChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(BoxPointer hash) throws IOException, CryptoException {
+                LockSupport.parkNanos(latencyMicros * 1000);
+                return accessor.getChunk(hash);
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data) throws IOException, CryptoException {
+                return accessor.putChunk(data);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+                accessor.releaseChunk(data);
+            }
+        };
+    }
+
+    static IChunkAccessor chunkAccessor(final ChunkStore.Transaction transaction) {
+        return new IChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(BoxPointer hash) throws IOException {
+                return new DataInputStream(new ByteArrayInputStream(transaction.getChunk(hash.getBoxHash())));
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data) throws IOException {
+                return transaction.put(data);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+        };
+    }
+
+    static IRepoChunkAccessors repoChunkAccessors(final ChunkStore chunkStore) {
+        return new IRepoChunkAccessors() {
+            @Override
+            public ITransaction startTransaction() throws IOException {
+                return new RepoAccessorsTransactionBase(chunkStore) {
+                    final IChunkAccessor accessor = chunkAccessor(transaction);
+
+                    @Override
+                    public ChunkStore.Transaction getRawAccessor() {
+                        return transaction;
+                    }
+
+                    @Override
+                    public IChunkAccessor getCommitAccessor() {
+                        return accessor;
+                    }
+
+                    @Override
+                    public IChunkAccessor getTreeAccessor() {
+                        return accessor;
+                    }
+
+                    @Override
+                    public IChunkAccessor getFileAccessor(String filePath) {
+                        return accessor;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Logs the commit pointer as "data hash:box hash".
+     */
+    final static Repository.ICommitCallback COMMIT_CALLBACK = new Repository.ICommitCallback() {
+        @Override
+        public String commitPointerToLog(BoxPointer commitPointer) {
+            return commitPointer.getDataHash().toHex() + ":" + commitPointer.getBoxHash().toHex();
+        }
+
+        @Override
+        public BoxPointer commitPointerFromLog(String logEntry) {
+            String[] parts = logEntry.split(":");
+            return new BoxPointer(HashValue.fromHex(parts[0]), HashValue.fromHex(parts[1]));
+        }
+
+        @Override
+        public byte[] createCommitMessage(String message, BoxPointer rootTree, Collection<BoxPointer> parents) {
+            return message.getBytes();
+        }
+    };
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+import org.fejoa.chunkstore.*;
+import org.fejoa.library.crypto.CryptoException;
+import org.fejoa.library.support.StreamHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Read throughput of a chunk container, i.e. the time to read the whole file. The chunks are kept in memory so that
+ * only the stream code is measured; chunkLatencyMicros simulates a slow, e.g. remote, chunk accessor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkContainerInputStreamBenchmark {
+    @Param({"104857600"})
+    int dataSize;
+
+    @Param({"0", "200"})
+    long chunkLatencyMicros;
+
+    // 0 reads the chunks synchronously
+    @Param({"0", "8"})
+    int readAheadChunks;
+
+    IChunkAccessor readAccessor;
+    BoxPointer pointer;
+    ExecutorService executor;
+    final byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, CryptoException {
+        byte[] data = BenchmarkSupport.randomBytes(new Random(1), dataSize);
+        IChunkAccessor accessor = BenchmarkSupport.memoryAccessor();
+        ChunkSplitter nodeSplitter = new RabinSplitter(RabinSplitter.CHUNK_8KB, RabinSplitter.CHUNK_1KB);
+        ChunkContainer container = new ChunkContainer(accessor, nodeSplitter);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(container,
+                new RabinSplitter(RabinSplitter.CHUNK_8KB, RabinSplitter.CHUNK_1KB));
+        outputStream.write(data);
+        outputStream.close();
+        container.flush(false);
+        pointer = container.getBoxPointer();
+        readAccessor = BenchmarkSupport.delayedAccessor(accessor, chunkLatencyMicros);
+        executor = Executors.newFixedThreadPool(Math.max(1, readAheadChunks));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Read chunks are cached in the container so the container is read again for every run, i.e. all data chunks are
+     * loaded through the accessor.
+     */
+    private ChunkContainerInputStream openStream() throws IOException, CryptoException {
+        ChunkContainer container = ChunkContainer.read(readAccessor, pointer);
+        if (readAheadChunks == 0)
+            return new ChunkContainerInputStream(container);
+        return new ChunkContainerInputStream(container, executor, readAheadChunks);
+    }
+
+    @Benchmark
+    public long readSingleBytes() throws IOException, CryptoException {
+        InputStream inputStream = openStream();
+        long sum = 0;
+        int b;
+        while ((b = inputStream.read()) >= 0)
+            sum += b;
+        return sum;
+    }
+
+    @Benchmark
+    public long readBuffer() throws IOException, CryptoException {
+        InputStream inputStream = openStream();
+        long total = 0;
+        int read;
+        while ((read = inputStream.read(buffer, 0, buffer.length)) >= 0)
+            total += read;
+        return total;
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException, CryptoException {
+        return openStream().transferTo(new OutputStream() {
+            @Override
+            public void write(int i) {
+
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) {
+
+            }
+        });
+    }
+
+    @Benchmark
+    public byte[] readAll() throws IOException, CryptoException {
+        return StreamHelper.readAll(openStream());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.*;
+import org.fejoa.library.crypto.CryptoException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time to write a data buffer into a new chunk container. The chunks are kept in memory so that only the container
+ * code is measured, optionally AES encrypted. With writerThreads > 0 the chunks are stored by the pipelined writer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkContainerOutputStreamBenchmark {
+    @Param({"65536", "1048576"})
+    int dataSize;
+
+    @Param({"RABIN", "FIXED"})
+    String splitter;
+
+    @Param({"false", "true"})
+    boolean encrypted;
+
+    @Param({"0", "4"})
+    int writerThreads;
+
+    byte[] data;
+    IChunkAccessor accessor;
+    ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = BenchmarkSupport.randomBytes(new Random(1), dataSize);
+        accessor = BenchmarkSupport.memoryAccessor();
+        if (encrypted)
+            accessor = BenchmarkSupport.encryptingAccessor(accessor);
+        if (writerThreads > 0)
+            executor = Executors.newFixedThreadPool(writerThreads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    private ChunkSplitter createSplitter() {
+        if (splitter.equals("FIXED"))
+            return new FixedBlockSplitter(RabinSplitter.CHUNK_8KB);
+        return new RabinSplitter(RabinSplitter.CHUNK_8KB, RabinSplitter.CHUNK_1KB);
+    }
+
+    @Benchmark
+    public BoxPointer write() throws IOException, CryptoException {
+        ChunkContainer container = new ChunkContainer(accessor, createSplitter());
+        ChunkContainerOutputStream outputStream;
+        if (executor != null)
+            outputStream = new ChunkContainerOutputStream(container, createSplitter(), executor, 2 * writerThreads);
+        else
+            outputStream = new ChunkContainerOutputStream(container, createSplitter());
+        outputStream.write(data);
+        outputStream.close();
+        container.flush(false);
+        return container.getBoxPointer();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.ChunkHash;
+import org.fejoa.chunkstore.RabinSplitter;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time to compute the chunk hash of a data buffer, i.e. splitting plus hashing of all layers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkHashBenchmark {
+    @Param({"65536", "1048576"})
+    int dataSize;
+
+    byte[] data;
+    ChunkHash chunkHash;
+
+    @Setup(Level.Trial)
+    public void setUp() throws NoSuchAlgorithmException {
+        data = BenchmarkSupport.randomBytes(new Random(1), dataSize);
+        chunkHash = new ChunkHash(new RabinSplitter(RabinSplitter.CHUNK_8KB, RabinSplitter.CHUNK_1KB),
+                new RabinSplitter(RabinSplitter.CHUNK_8KB, RabinSplitter.CHUNK_1KB));
+    }
+
+    @Benchmark
+    public byte[] digest() {
+        chunkHash.reset();
+        chunkHash.update(data);
+        return chunkHash.digest();
+    }
+}
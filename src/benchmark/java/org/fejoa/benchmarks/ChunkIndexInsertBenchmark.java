@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.BPlusTreeChunkIndex;
+import org.fejoa.chunkstore.ChunkIndex;
+import org.fejoa.chunkstore.ExtensibleHashChunkIndex;
+import org.fejoa.chunkstore.HashValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time to fill a new B+ tree or extensible hash chunk index in batches, like the chunk store does when committing.
+ * Returns the size of the index file; larger indices can be measured with -p nEntries=10000000.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ChunkIndexInsertBenchmark {
+    final static int BATCH_SIZE = 100000;
+
+    @Param({"BPLUS_TREE", "EXTENSIBLE_HASH"})
+    ChunkIndex.Type indexType;
+
+    @Param({"100000", "1000000"})
+    int nEntries;
+
+    File dir;
+    RandomAccessFile file;
+    final List<HashValue> hashes = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        for (int i = 0; i < nEntries; i++)
+            hashes.add(new HashValue(BenchmarkSupport.hash(i)));
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        dir = BenchmarkSupport.createTempDir("chunkIndexInsertBenchmark");
+        file = new RandomAccessFile(new File(dir, "index"), "rw");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        file.close();
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public long insert() throws IOException {
+        ChunkIndex index;
+        switch (indexType) {
+            case BPLUS_TREE:
+                index = BPlusTreeChunkIndex.create(file, 32);
+                break;
+            case EXTENSIBLE_HASH:
+                index = ExtensibleHashChunkIndex.create(file, 32);
+                break;
+            default:
+                throw new IOException("Unknown index type: " + indexType);
+        }
+        for (int batchStart = 0; batchStart < nEntries; batchStart += BATCH_SIZE) {
+            int batchEnd = Math.min(nEntries, batchStart + BATCH_SIZE);
+            List<Long> positions = new ArrayList<>(batchEnd - batchStart);
+            for (long i = batchStart; i < batchEnd; i++)
+                positions.add(i);
+            index.putAll(hashes.subList(batchStart, batchEnd), positions);
+        }
+        index.sync();
+        return file.length();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.BPlusTreeChunkIndex;
+import org.fejoa.chunkstore.ChunkIndex;
+import org.fejoa.chunkstore.ExtensibleHashChunkIndex;
+import org.fejoa.chunkstore.HashValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Lookup latency of the B+ tree and the extensible hash chunk index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkIndexLookupBenchmark {
+    final static int BATCH_SIZE = 100000;
+    final static int N_LOOKUPS = 100000;
+
+    @Param({"BPLUS_TREE", "EXTENSIBLE_HASH"})
+    ChunkIndex.Type indexType;
+
+    @Param({"100000", "1000000"})
+    int nEntries;
+
+    File dir;
+    RandomAccessFile file;
+    ChunkIndex index;
+    final List<byte[]> hits = new ArrayList<>();
+    final List<byte[]> misses = new ArrayList<>();
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("chunkIndexBenchmark");
+        file = new RandomAccessFile(new File(dir, "index"), "rw");
+        switch (indexType) {
+            case BPLUS_TREE:
+                index = BPlusTreeChunkIndex.create(file, 32);
+                break;
+            case EXTENSIBLE_HASH:
+                index = ExtensibleHashChunkIndex.create(file, 32);
+                break;
+            default:
+                throw new IOException("Unknown index type: " + indexType);
+        }
+        for (int batchStart = 0; batchStart < nEntries; batchStart += BATCH_SIZE) {
+            int batchEnd = Math.min(nEntries, batchStart + BATCH_SIZE);
+            List<HashValue> hashes = new ArrayList<>(batchEnd - batchStart);
+            List<Long> positions = new ArrayList<>(batchEnd - batchStart);
+            for (int i = batchStart; i < batchEnd; i++) {
+                hashes.add(new HashValue(BenchmarkSupport.hash(i)));
+                positions.add((long)i);
+            }
+            index.putAll(hashes, positions);
+        }
+        index.sync();
+
+        Random random = new Random(1);
+        for (int i = 0; i < N_LOOKUPS; i++) {
+            hits.add(BenchmarkSupport.hash(random.nextInt(nEntries)));
+            misses.add(BenchmarkSupport.hash(nEntries + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        file.close();
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public Long getHit() throws IOException {
+        next = (next + 1) % N_LOOKUPS;
+        return index.get(hits.get(next));
+    }
+
+    @Benchmark
+    public Long getMiss() throws IOException {
+        next = (next + 1) % N_LOOKUPS;
+        return index.get(misses.get(next));
+    }
+}
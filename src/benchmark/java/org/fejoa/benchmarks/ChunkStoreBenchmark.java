@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.ChunkStore;
+import org.fejoa.chunkstore.HashValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Throughput of putting new chunks into the store and latency of reading stored chunks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkStoreBenchmark {
+    final static int N_CHUNKS = 10000;
+
+    @Param({"1024", "8192", "65536"})
+    int chunkSize;
+
+    File dir;
+    ChunkStore chunkStore;
+    ChunkStore.Transaction transaction;
+    Random random;
+    final List<HashValue> storedChunks = new ArrayList<>();
+    int nextRead;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("chunkStoreBenchmark");
+        chunkStore = ChunkStore.create(dir, "test");
+        transaction = chunkStore.openTransaction();
+        random = new Random(1);
+        storedChunks.clear();
+        for (int i = 0; i < N_CHUNKS; i++)
+            storedChunks.add(transaction.put(BenchmarkSupport.randomBytes(random, chunkSize)).key);
+        transaction.commit();
+        transaction = chunkStore.openTransaction();
+        nextRead = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        transaction.commit();
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public HashValue put() throws IOException {
+        return transaction.put(BenchmarkSupport.randomBytes(random, chunkSize)).key;
+    }
+
+    @Benchmark
+    public byte[] getChunk() throws IOException {
+        HashValue hash = storedChunks.get(nextRead);
+        nextRead = (nextRead + 1) % storedChunks.size();
+        return transaction.getChunk(hash);
+    }
+}
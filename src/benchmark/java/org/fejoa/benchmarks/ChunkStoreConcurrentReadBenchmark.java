@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.ChunkStore;
+import org.fejoa.chunkstore.HashValue;
+import org.fejoa.chunkstore.PackFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Read throughput of a chunk store that is shared by several reader threads. Readers use positional reads so the
+ * throughput of readConcurrent should grow with the number of cores compared to readSingle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkStoreConcurrentReadBenchmark {
+    final static int N_CHUNKS = 2000;
+
+    @Param({"POSITIONAL", "MAPPED"})
+    String readMode;
+
+    File dir;
+    ChunkStore chunkStore;
+    final List<HashValue> storedChunks = new ArrayList<>();
+
+    @State(Scope.Thread)
+    public static class ReaderState {
+        final Random random = new Random();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("chunkStoreConcurrentReadBenchmark");
+        ChunkStore.Settings settings = ChunkStore.Settings.getConcurrent();
+        settings.packReadMode = PackFile.ReadMode.valueOf(readMode);
+        chunkStore = ChunkStore.create(dir, "test", settings);
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        Random random = new Random(1);
+        for (int i = 0; i < N_CHUNKS; i++) {
+            byte[] data = BenchmarkSupport.randomBytes(random, 1024 + random.nextInt(4 * 1024));
+            storedChunks.add(transaction.put(data).key);
+        }
+        transaction.commit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.delete(dir);
+    }
+
+    private byte[] read(ReaderState state) throws IOException {
+        return chunkStore.getChunk(storedChunks.get(state.random.nextInt(storedChunks.size())));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] readSingle(ReaderState state) throws IOException {
+        return read(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] readConcurrent(ReaderState state) throws IOException {
+        return read(state);
+    }
+}
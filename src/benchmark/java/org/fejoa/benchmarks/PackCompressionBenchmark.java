@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.HashValue;
+import org.fejoa.chunkstore.PackFile;
+import org.fejoa.library.crypto.CryptoHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Pack size and put/get time for different compression levels. The chunks are a mix of text like chunks (json
+ * commands, documents, boxes) and chunks that don't compress (encrypted data).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackCompressionBenchmark {
+    final static int N_CHUNKS = 2000;
+    final static int CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Raw and packed bytes written by the pack benchmark.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PackSize {
+        public long rawBytes;
+        public long packedBytes;
+    }
+
+    // PackFile.NO_COMPRESSION or a Deflater level
+    @Param({"-2", "1", "6", "9"})
+    int compressionLevel;
+
+    File dir;
+    final List<byte[]> chunks = new ArrayList<>();
+    final List<HashValue> hashes = new ArrayList<>();
+    RandomAccessFile file;
+    PackFile packFile;
+    final List<Long> positions = new ArrayList<>();
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("packCompressionBenchmark");
+        String[] words = {"commit", "directory", "entry", "\"id\": ", "\"type\": ", "{", "}", "[", "]", "\"name\": ",
+                "message", "sender", "receiver", "data", "\n"};
+        Random random = new Random(1);
+        for (int i = 0; i < N_CHUNKS; i++) {
+            byte[] data;
+            if (i % 4 == 0) {
+                data = BenchmarkSupport.randomBytes(random, CHUNK_SIZE);
+            } else {
+                StringBuilder builder = new StringBuilder();
+                while (builder.length() < CHUNK_SIZE) {
+                    builder.append(words[random.nextInt(words.length)]);
+                    builder.append(random.nextInt(1000));
+                    builder.append(' ');
+                }
+                data = Arrays.copyOf(builder.toString().getBytes(), CHUNK_SIZE);
+            }
+            chunks.add(data);
+            hashes.add(new HashValue(CryptoHelper.sha256Hash(data)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        file = new RandomAccessFile(new File(dir, "pack"), "rw");
+        file.setLength(0);
+        packFile = createPackFile(file);
+        positions.clear();
+        for (int i = 0; i < N_CHUNKS; i++)
+            positions.add(packFile.put(hashes.get(i), chunks.get(i)));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        packFile.close();
+    }
+
+    private PackFile createPackFile(RandomAccessFile file) throws IOException {
+        PackFile packFile = new PackFile(file, PackFile.ReadMode.POSITIONAL);
+        packFile.create(hashes.get(0).size());
+        packFile.setCompressionLevel(compressionLevel);
+        return packFile;
+    }
+
+    /**
+     * Writes all chunks into a new pack.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void pack(PackSize size) throws IOException {
+        RandomAccessFile newFile = new RandomAccessFile(new File(dir, "newPack"), "rw");
+        try {
+            newFile.setLength(0);
+            PackFile newPack = createPackFile(newFile);
+            for (int i = 0; i < N_CHUNKS; i++)
+                newPack.put(hashes.get(i), chunks.get(i));
+            size.rawBytes += (long)N_CHUNKS * CHUNK_SIZE;
+            size.packedBytes += newPack.length();
+        } finally {
+            newFile.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        next = (next + 1) % N_CHUNKS;
+        return packFile.get(positions.get(next), hashes.get(next).getBytes());
+    }
+}
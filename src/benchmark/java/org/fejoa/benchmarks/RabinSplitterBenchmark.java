@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.ChunkSplitter;
+import org.fejoa.chunkstore.RabinSplitter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Content defined chunking and hashing throughput, i.e. the time per data buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RabinSplitterBenchmark {
+    @Param({"65536", "1048576"})
+    int dataSize;
+
+    @Param({"8192"})
+    int targetChunkSize;
+
+    byte[] data;
+    ChunkSplitter splitter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = BenchmarkSupport.randomBytes(new Random(1), dataSize);
+        splitter = new RabinSplitter(targetChunkSize, targetChunkSize / 4, targetChunkSize * 4);
+    }
+
+    @Benchmark
+    public int split() {
+        splitter.reset();
+        int nChunks = 0;
+        for (byte b : data) {
+            if (splitter.update(b)) {
+                nChunks++;
+                splitter.reset();
+            }
+        }
+        return nChunks;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.benchmarks;
+
+import org.fejoa.chunkstore.BoxPointer;
+import org.fejoa.chunkstore.ChunkStore;
+import org.fejoa.chunkstore.Repository;
+import org.fejoa.library.crypto.CryptoException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time of an incremental commit that changes a few files in a synthetic tree of nDirs * nFilesPerDir files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RepositoryCommitBenchmark {
+    @Param({"10", "100"})
+    int nDirs;
+
+    @Param({"100"})
+    int nFilesPerDir;
+
+    @Param({"1", "10"})
+    int nChangedFiles;
+
+    @Param({"4096"})
+    int fileSize;
+
+    File dir;
+    ChunkStore chunkStore;
+    Repository repository;
+    Random random;
+
+    static private String filePath(int dir, int file) {
+        return "dir" + dir + "/file" + file;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, CryptoException {
+        dir = BenchmarkSupport.createTempDir("repositoryCommitBenchmark");
+        chunkStore = ChunkStore.create(dir, "test");
+        repository = new Repository(dir, "repoBranch", BenchmarkSupport.repoChunkAccessors(chunkStore),
+                BenchmarkSupport.COMMIT_CALLBACK);
+        random = new Random(1);
+        for (int d = 0; d < nDirs; d++) {
+            for (int f = 0; f < nFilesPerDir; f++)
+                repository.writeBytes(filePath(d, f), BenchmarkSupport.randomBytes(random, fileSize));
+        }
+        repository.commit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public BoxPointer commit() throws IOException, CryptoException {
+        for (int i = 0; i < nChangedFiles; i++) {
+            repository.writeBytes(filePath(random.nextInt(nDirs), random.nextInt(nFilesPerDir)),
+                    BenchmarkSupport.randomBytes(random, fileSize));
+        }
+        return repository.commit();
+    }
+}
@@ -9,8 +9,10 @@ package org.fejoa.chunkstore;
 
 import org.fejoa.library.crypto.CryptoHelper;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 
@@ -59,45 +61,41 @@ import java.util.*;
  * hash n  |  data n
  * -----------------
  *
+ * The directory index of a hash is taken from its first four bytes; the low 16 bits are the second and the first byte
+ * and the bits above come from the third and the fourth byte, i.e. the directory can grow to 2^31 entries.
+ *
+ * The directory is kept in memory and written through to the file. The file is mapped in segments and get() searches
+ * the bucket in the mapping, i.e. a lookup costs one directory array access and one mapped bucket access. Any number of
+ * readers can call get() concurrently as long as there is no concurrent put() or remove().
  */
-public class AbstractExtensibleHashMap<IndexType extends Number, DataType extends Number> {
+public class AbstractExtensibleHashMap<DataType extends Number> {
     public interface IDataType<Type> {
         short size();
-        void write(RandomAccessFile file, Type value) throws IOException;
-        Type read(RandomAccessFile file) throws IOException;
+        void write(DataOutput output, Type value) throws IOException;
+        Type read(DataInput input) throws IOException;
+        // absolute read, i.e. the position of the buffer is not changed
+        Type get(ByteBuffer buffer, int index);
     }
 
-    static public class IntegerType implements IDataType<Integer> {
+    static public class LongType implements IDataType<Long> {
         @Override
         public short size() {
-            return 4;
-        }
-
-        @Override
-        public void write(RandomAccessFile file, Integer value) throws IOException {
-            file.writeInt(value);
+            return 8;
         }
 
         @Override
-        public Integer read(RandomAccessFile file) throws IOException {
-            return file.readInt();
+        public void write(DataOutput output, Long value) throws IOException {
+            output.writeLong(value);
         }
-    }
 
-    static public class LongType implements IDataType<Long> {
         @Override
-        public short size() {
-            return 8;
+        public Long read(DataInput input) throws IOException {
+            return input.readLong();
         }
 
         @Override
-        public void write(RandomAccessFile file, Long value) throws IOException {
-            file.writeLong(value);
-        }
-
-        @Override
-        public Long read(RandomAccessFile file) throws IOException {
-            return file.readLong();
+        public Long get(ByteBuffer buffer, int index) {
+            return buffer.getLong(index);
         }
     }
 
@@ -132,30 +130,28 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
             return hashs.size();
         }
 
-        private void seekTo() throws IOException {
-            long position = dataStartOffset() + bucketPosition;
-            file.seek(position);
-        }
-
         public void writeBucket() throws IOException {
-            seekTo();
             assert size() <= bucketCapacity;
-            file.writeShort(size());
+            // write the bucket in one go
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(bucketSize());
+            DataOutputStream outputStream = new DataOutputStream(byteStream);
+            outputStream.writeShort(size());
             for (int i = 0; i < size(); i++) {
-                file.write(hashs.get(i));
-                dataType.write(file, elements.get(i));
+                outputStream.write(hashs.get(i));
+                dataType.write(outputStream, elements.get(i));
             }
+            file.seek(dataStartOffset() + bucketPosition);
+            file.write(byteStream.toByteArray());
         }
 
         public void readBucket() throws IOException {
-            seekTo();
-
-            short entries = file.readShort();
+            DataInputStream inputStream = readFully(dataStartOffset() + bucketPosition, bucketSize());
+            short entries = inputStream.readShort();
             for (int i = 0; i < entries; i++) {
                 byte[] hash = new byte[hashSize];
-                file.readFully(hash);
+                inputStream.readFully(hash);
                 hashs.add(hash);
-                elements.add(dataType.read(file));
+                elements.add(dataType.read(inputStream));
             }
         }
 
@@ -165,25 +161,42 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         }
     }
 
-    final private IDataType<IndexType> indexType;
     final private IDataType<DataType> dataType;
+    // a directory entry is the index of a bucket (int)
+    final static private int DIRECTORY_ENTRY_SIZE = 4;
+
+    final static public int DEFAULT_MAPPED_SEGMENT_SIZE = 64 * 1024 * 1024;
 
     private RandomAccessFile file;
-    private int offset;
+    private long offset;
+    // bucket index for each directory entry; only replaced when the directory is duplicated
+    private volatile int[] directory = new int[0];
+    private int mappedSegmentSize = DEFAULT_MAPPED_SEGMENT_SIZE;
+    // all segments but the last one have the size mappedSegmentSize
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long mappedLength = 0;
 
     private short hashSize = 4;
     private short bucketCapacity = 1;
 
-    public AbstractExtensibleHashMap(IDataType<IndexType> indexType, IDataType<DataType> dataType) {
-        this.indexType = indexType;
+    public AbstractExtensibleHashMap(IDataType<DataType> dataType) {
         this.dataType = dataType;
     }
 
+    /**
+     * Sets the size of the mapped file segments; must be called before the map is opened or created.
+     */
+    public void setMappedSegmentSize(int mappedSegmentSize) {
+        this.mappedSegmentSize = mappedSegmentSize;
+    }
+
     public void open(RandomAccessFile file, int offset) throws IOException {
         this.file = file;
         this.offset = offset;
+        unmap();
 
         readHeader();
+        readDirectory();
     }
 
     public void create(RandomAccessFile file, int offset, short hashSize, short bucketCapacity) throws IOException {
@@ -191,10 +204,74 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         this.offset = offset;
         this.hashSize = hashSize;
         this.bucketCapacity = bucketCapacity;
+        unmap();
 
         init();
     }
 
+    public void sync() throws IOException {
+        file.getChannel().force(false);
+    }
+
+    private void unmap() {
+        segments = new MappedByteBuffer[0];
+        mappedLength = 0;
+    }
+
+    /**
+     * Makes sure that the file is mapped up to the position end.
+     *
+     * Full segments never change so only the last (partial) segment and the new segments are (re)mapped.
+     */
+    private void ensureMapped(long end) throws IOException {
+        if (end <= mappedLength)
+            return;
+        synchronized (this) {
+            if (end <= mappedLength)
+                return;
+            FileChannel channel = file.getChannel();
+            long fileLength = channel.size();
+            if (end > fileLength)
+                throw new EOFException("Read beyond the end of the map: " + end + " (Length: " + fileLength + ")");
+
+            int nSegments = (int)((fileLength + mappedSegmentSize - 1) / mappedSegmentSize);
+            MappedByteBuffer[] remapped = Arrays.copyOf(segments, nSegments);
+            for (int i = (int)(mappedLength / mappedSegmentSize); i < nSegments; i++) {
+                long start = (long)i * mappedSegmentSize;
+                remapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(mappedSegmentSize, fileLength - start));
+            }
+            segments = remapped;
+            mappedLength = fileLength;
+        }
+    }
+
+    /**
+     * Copies the given range out of the mapping.
+     */
+    private byte[] readBytes(long position, int length) throws IOException {
+        ensureMapped(position + length);
+        MappedByteBuffer[] segments = this.segments;
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            // duplicate so that we don't touch the position of the shared segment
+            ByteBuffer segment = segments[(int)(position / mappedSegmentSize)].duplicate();
+            int inSegmentPosition = (int)(position % mappedSegmentSize);
+            int chunkLength = Math.min(length - offset, segment.limit() - inSegmentPosition);
+            segment.position(inSegmentPosition);
+            segment.get(buffer, offset, chunkLength);
+
+            position += chunkLength;
+            offset += chunkLength;
+        }
+        return buffer;
+    }
+
+    private DataInputStream readFully(long position, int length) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(readBytes(position, length)));
+    }
+
     public void print() throws IOException {
         int size = directorySize();
         System.out.println("Directory size: " + size);
@@ -211,19 +288,35 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         }
     }
 
-    private short bucketsInDirectorySlice(int depth) {
-        short nBuckets = 2;
+    private int bucketsInDirectorySlice(int depth) {
+        int nBuckets = 2;
         if (depth > 1)
-            nBuckets = (short)Math.pow(2, depth - 1);
+            nBuckets = (int)Math.pow(2, depth - 1);
         return nBuckets;
     }
 
-    public int directorySize() throws IOException {
-        long fileLength = file.length();
-        int dataLength = (int)(fileLength - dataStartOffset() - directorySliceOffset(1));
+    public int directorySize() {
+        return directory.length;
+    }
+
+    /**
+     * Reads the directory slices of all depths into memory.
+     */
+    private void readDirectory() throws IOException {
+        long dataLength = file.length() - dataStartOffset() - directorySliceOffset(1);
         int entrySize = entrySize();
         assert dataLength % entrySize == 0;
-        return dataLength / entrySize;
+        int[] entries = new int[(int)(dataLength / entrySize)];
+        int start = 0;
+        for (int depth = 1; start < entries.length; depth++) {
+            int sliceSize = bucketsInDirectorySlice(depth);
+            DataInputStream inputStream = readFully(dataStartOffset() + directorySliceOffset(depth),
+                    sliceSize * DIRECTORY_ENTRY_SIZE);
+            for (int i = 0; i < sliceSize; i++)
+                entries[start + i] = inputStream.readInt();
+            start += sliceSize;
+        }
+        directory = entries;
     }
 
     private void writeHeader() throws IOException {
@@ -251,14 +344,15 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         buckets.add(new Bucket(0));
         buckets.add(new Bucket(1));
 
-        int tileOffset = dataStartOffset() + directorySliceOffset(depth);
+        long tileOffset = dataStartOffset() + directorySliceOffset(depth);
         int tileSize = buckets.size() * entrySize();
         if (file.length() - tileOffset < tileSize)
             file.setLength(tileOffset + tileSize);
         file.seek(tileOffset);
 
-        for (Integer i = 0; i < buckets.size(); i++)
-            writeDirectoryEntry(i, (IndexType)i);
+        directory = new int[buckets.size()];
+        for (int i = 0; i < buckets.size(); i++)
+            writeDirectoryEntry(i, i);
         for (int i = 0; i < buckets.size(); i++) {
             Bucket bucket = buckets.get(i);
             bucket.writeBucket();
@@ -277,15 +371,15 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
     }
 
     private int entrySize() {
-        return indexType.size() + bucketSize();
+        return DIRECTORY_ENTRY_SIZE + bucketSize();
     }
 
-    private int dataStartOffset() {
+    private long dataStartOffset() {
         return offset + headerSize();
     }
 
-    private int directorySliceOffset(int depth) {
-        int sliceOffset = indexForDepth(depth) * entrySize();
+    private long directorySliceOffset(int depth) {
+        long sliceOffset = (long)indexForDepth(depth) * entrySize();
         return sliceOffset;
     }
 
@@ -305,20 +399,19 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
             i -= Math.pow(2, depth - 1);
 
         long offset = directorySliceOffset(depth);
-        offset += i * indexType.size();
+        offset += (long)i * DIRECTORY_ENTRY_SIZE;
         return offset;
     }
 
-    private IndexType readDirectoryEntry(int i) throws IOException {
-        long position = dataStartOffset() + getDirectoryEntryAddress(i);
-        file.seek(position);
-        return indexType.read(file);
+    private int readDirectoryEntry(int i) {
+        return directory[i];
     }
 
-    private void writeDirectoryEntry(int i, IndexType entry) throws IOException {
+    private void writeDirectoryEntry(int i, int entry) throws IOException {
+        directory[i] = entry;
         long position = dataStartOffset() + getDirectoryEntryAddress(i);
         file.seek(position);
-        indexType.write(file, entry);
+        file.writeInt(entry);
     }
 
     private long getBucketPosition(int i, int depth) {
@@ -326,34 +419,33 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
             i -= Math.pow(2, depth - 1);
         long offset = directorySliceOffset(depth);
         // skip bucket addresses
-        offset += bucketsInDirectorySlice(depth) * indexType.size();
+        offset += (long)bucketsInDirectorySlice(depth) * DIRECTORY_ENTRY_SIZE;
         // select i th bucket
-        offset += i * bucketSize();
+        offset += (long)i * bucketSize();
         return offset;
     }
 
-    private int getDepth() throws IOException {
-        int entries = directorySize();
-        int depth = 0;
-        while (entries >= 2) {
-            entries /= 2;
-            depth++;
-        }
-        return depth;
+    private int getDepth() {
+        // the directory size is a power of two
+        return Integer.numberOfTrailingZeros(directory.length);
     }
 
     public void duplicateDirectory() throws IOException {
         long fileLength = file.length();
         long dataSize = fileLength - dataStartOffset();
         int currentSize = directorySize();
-        List<IndexType> directory = new ArrayList<>(currentSize);
-        for (int i = 0; i < currentSize; i++)
-            directory.add(readDirectoryEntry(i));
+        // the new slice points to the same buckets as the current directory
+        int[] duplicated = Arrays.copyOf(directory, 2 * currentSize);
+        System.arraycopy(directory, 0, duplicated, currentSize, currentSize);
 
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(currentSize * DIRECTORY_ENTRY_SIZE);
+        DataOutputStream outputStream = new DataOutputStream(byteStream);
+        for (int i = 0; i < currentSize; i++)
+            outputStream.writeInt(directory[i]);
         file.setLength(fileLength + dataSize);
         file.seek(fileLength);
-        for (int i = 0; i < directory.size(); i++)
-            indexType.write(file, directory.get(i));
+        file.write(byteStream.toByteArray());
+        directory = duplicated;
     }
 
     public boolean put(String hash, DataType address) throws IOException {
@@ -368,30 +460,35 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         return remove(CryptoHelper.fromHex(hash));
     }
 
-    private IndexType shortHash(byte[] hash, int depth) {
-        Integer shortHash = ((hash[0] << 8) | (hash[1]));
-        shortHash = (shortHash & ~(0xFFFFFFFF << depth));
-        return (IndexType)shortHash;
+    private int shortHash(byte[] hash, int depth) {
+        int shortHash = (hash[0] & 0xFF) << 8 | (hash[1] & 0xFF);
+        if (hash.length > 2)
+            shortHash |= (hash[2] & 0xFF) << 16;
+        if (hash.length > 3)
+            shortHash |= (hash[3] & 0x7F) << 24;
+        return shortHash & ~(0xFFFFFFFF << depth);
     }
 
     private void distributeBucket(boolean duplicate, Bucket bucket, int depth) throws IOException {
         if (duplicate) {
+            if (depth >= 31)
+                throw new IOException("Bucket overflow; too many entries with the same hash");
             duplicateDirectory();
             depth++;
         }
 
-        Map<IndexType, Bucket> modifiedBuckets = new HashMap<>();
+        Map<Integer, Bucket> modifiedBuckets = new HashMap<>();
         for (int i = 0; i < bucket.hashs.size(); i++) {
             byte[] hash = bucket.hashs.get(i);
             DataType address = bucket.elements.get(i);
-            IndexType index = shortHash(hash, depth);
-            if ((Integer)index == bucket.index)
+            int index = shortHash(hash, depth);
+            if (index == bucket.index)
                 continue;
             else {
                 Bucket newBucket = modifiedBuckets.get(index);
                 if (newBucket == null) {
-                    newBucket = new Bucket((Integer) index);
-                    assert newBucket.depth == depth;
+                    newBucket = new Bucket(index);
+                    assert newBucket.depth <= depth;
                     modifiedBuckets.put(index, newBucket);
                 }
                 newBucket.addForce(hash, address);
@@ -400,25 +497,45 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
                 continue;
             }
         }
-        for (Map.Entry<IndexType, Bucket> entry : modifiedBuckets.entrySet()) {
-            Bucket modifiedBucket = entry.getValue();
-            IndexType index = entry.getKey();
-            writeDirectoryEntry((Integer) index, index);
+        // update the directory before splitting further; a split may duplicate the directory
+        for (int index : modifiedBuckets.keySet())
+            writeDirectoryEntry(index, index);
+        for (Bucket modifiedBucket : modifiedBuckets.values()) {
             if (modifiedBucket.size() > bucketCapacity)
-                distributeBucket(true, modifiedBucket, depth);
+                splitBucket(modifiedBucket);
             else
                 modifiedBucket.writeBucket();
         }
-        bucket.writeBucket();
+        // all entries may have stayed in the bucket
+        if (bucket.size() > bucketCapacity)
+            splitBucket(bucket);
+        else
+            bucket.writeBucket();
+    }
+
+    /**
+     * Splits an overflowing bucket; the directory is only duplicated if all entries map to the bucket at the current
+     * depth.
+     */
+    private void splitBucket(Bucket bucket) throws IOException {
+        int depth = getDepth();
+        boolean duplicate = true;
+        for (byte[] hash : bucket.hashs) {
+            if (shortHash(hash, depth) != bucket.index) {
+                duplicate = false;
+                break;
+            }
+        }
+        distributeBucket(duplicate, bucket, depth);
     }
 
     public boolean put(byte[] hash, DataType address) throws IOException {
         assert hash.length == hashSize;
 
         int depth = getDepth();
-        int index = (Integer)shortHash(hash, depth);
+        int index = shortHash(hash, depth);
 
-        int bucketIndex = (Integer)readDirectoryEntry(index);
+        int bucketIndex = readDirectoryEntry(index);
         Bucket bucket = new Bucket(bucketIndex);
         bucket.readBucket();
         if (bucket.add(hash, address)) {
@@ -426,38 +543,100 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         } else {
             // force add and then split
             bucket.addForce(hash, address);
-            boolean duplicate = index == bucketIndex;
-            distributeBucket(duplicate, bucket, depth);
+            splitBucket(bucket);
         }
 
         return true;
     }
 
+    /**
+     * Puts many entries at once. The entries are sorted so that the entries of a bucket are next to each other, i.e. a
+     * bucket is only read and written once per batch unless it has to be split.
+     */
+    public void putAll(List<byte[]> hashes, List<DataType> addresses) throws IOException {
+        assert hashes.size() == addresses.size();
+
+        List<Integer> order = new ArrayList<>(hashes.size());
+        final long[] bucketOrder = new long[hashes.size()];
+        for (int i = 0; i < hashes.size(); i++) {
+            order.add(i);
+            // the bucket is selected by the low bits, i.e. sort by the reversed bits
+            bucketOrder[i] = Integer.reverse(shortHash(hashes.get(i), 31)) & 0xFFFFFFFFL;
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(bucketOrder[a], bucketOrder[b]);
+            }
+        });
+
+        Bucket bucket = null;
+        for (int i : order) {
+            byte[] hash = hashes.get(i);
+            assert hash.length == hashSize;
+            int bucketIndex = readDirectoryEntry(shortHash(hash, getDepth()));
+            if (bucket != null && bucket.index != bucketIndex) {
+                bucket.writeBucket();
+                bucket = null;
+            }
+            if (bucket == null) {
+                bucket = new Bucket(bucketIndex);
+                bucket.readBucket();
+            }
+            if (!bucket.add(hash, addresses.get(i))) {
+                // force add and then split; the split writes all buckets
+                bucket.addForce(hash, addresses.get(i));
+                splitBucket(bucket);
+                bucket = null;
+            }
+        }
+        if (bucket != null)
+            bucket.writeBucket();
+    }
+
     public DataType get(byte[] hash) throws IOException {
         assert hash.length == hashSize;
 
         int depth = getDepth();
-        int index = (Integer)shortHash(hash, depth);
-
-        int bucketIndex = (Integer)readDirectoryEntry(index);
-        Bucket bucket = new Bucket(bucketIndex);
-        bucket.readBucket();
-
-        for (int i = 0; i < bucket.size(); i++) {
-            byte[] current = bucket.hashs.get(i);
-            if (Arrays.equals(current, hash))
-                return bucket.elements.get(i);
+        int index = shortHash(hash, depth);
+
+        int bucketIndex = directory[index];
+        long bucketPosition = dataStartOffset() + getBucketPosition(bucketIndex, getDepthForIndex(bucketIndex));
+        int bucketSize = bucketSize();
+        ensureMapped(bucketPosition + bucketSize);
+        // search the bucket in the mapping; only a bucket that spans two segments is copied
+        ByteBuffer bucket = segments[(int)(bucketPosition / mappedSegmentSize)];
+        int bucketStart = (int)(bucketPosition % mappedSegmentSize);
+        if (bucketStart + bucketSize > bucket.limit()) {
+            bucket = ByteBuffer.wrap(readBytes(bucketPosition, bucketSize));
+            bucketStart = 0;
+        }
+        int entries = bucket.getShort(bucketStart);
+        int entrySize = hashSize + dataType.size();
+        for (int i = 0; i < entries; i++) {
+            int hashPosition = bucketStart + 2 + i * entrySize;
+            if (!equals(bucket, hashPosition, hash))
+                continue;
+            return dataType.get(bucket, hashPosition + hashSize);
         }
         return null;
     }
 
+    static private boolean equals(ByteBuffer buffer, int index, byte[] hash) {
+        for (int i = 0; i < hash.length; i++) {
+            if (buffer.get(index + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
     public boolean remove(byte[] hash) throws IOException {
         assert hash.length == hashSize;
 
         int depth = getDepth();
-        int index = (Integer)shortHash(hash, depth);
+        int index = shortHash(hash, depth);
 
-        int bucketIndex = (Integer)readDirectoryEntry(index);
+        int bucketIndex = readDirectoryEntry(index);
         Bucket bucket = new Bucket(bucketIndex);
         bucket.readBucket();
 
@@ -467,9 +646,9 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
                 bucket.remove(i);
                 // We only need to write the bucket if there are still elements or we at depth 1 otherwise we point to
                 // the bucket at depth - 1.
-                if (bucket.size() == 0 && bucket.depth > 1) {
+                if (bucket.size() == 0 && bucket.depth > 1 && index == bucketIndex) {
                     // point to the bucket in depth - 1
-                    IndexType prevBucket = readDirectoryEntry((Integer)shortHash(hash, depth - 1));
+                    int prevBucket = readDirectoryEntry(shortHash(hash, depth - 1));
                     writeDirectoryEntry(index, prevBucket);
                     // todo shrink idx file if possible
                 } else {
@@ -480,4 +659,20 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         }
         return false;
     }
+
+    /**
+     * Visits the entries of all buckets in directory order.
+     */
+    public void visitEntries(BaseBPlusTree.IEntryVisitor<DataType> visitor) throws IOException {
+        int size = directorySize();
+        for (int i = 0; i < size; i++) {
+            // buckets that no directory entry points to are stale
+            if (readDirectoryEntry(i) != i)
+                continue;
+            Bucket bucket = new Bucket(i);
+            bucket.readBucket();
+            for (int a = 0; a < bucket.size(); a++)
+                visitor.visit(bucket.hashs.get(a), bucket.elements.get(a));
+        }
+    }
 }
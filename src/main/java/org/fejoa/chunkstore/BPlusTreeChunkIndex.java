@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+
+/**
+ * Chunk index backed by a BPlusTree.
+ */
+public class BPlusTreeChunkIndex implements ChunkIndex {
+    final static public int TILE_SIZE = 1024;
+
+    final private RandomAccessFile file;
+    final private BPlusTree tree;
+
+    private BPlusTreeChunkIndex(RandomAccessFile file, BPlusTree tree) {
+        this.file = file;
+        this.tree = tree;
+    }
+
+    static public BPlusTreeChunkIndex create(RandomAccessFile file, int hashSize) throws IOException {
+        BPlusTree tree = new BPlusTree(file);
+        tree.create(hashSize, TILE_SIZE);
+        return new BPlusTreeChunkIndex(file, tree);
+    }
+
+    static public BPlusTreeChunkIndex open(RandomAccessFile file) throws IOException {
+        BPlusTree tree = new BPlusTree(file);
+        tree.open();
+        return new BPlusTreeChunkIndex(file, tree);
+    }
+
+    public BPlusTree getTree() {
+        return tree;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.BPLUS_TREE;
+    }
+
+    @Override
+    public Long get(byte[] hash) throws IOException {
+        return tree.get(hash);
+    }
+
+    @Override
+    public void putAll(List<HashValue> hashes, List<Long> positions) throws IOException {
+        tree.putAll(hashes, positions);
+    }
+
+    @Override
+    public void visitEntries(BaseBPlusTree.IEntryVisitor<Long> visitor) throws IOException {
+        tree.visitEntries(visitor);
+    }
+
+    /**
+     * Modified nodes are copied on write but the freed tiles are reused by the next commit and the header is written
+     * without a sync, i.e. after a crash the header on disk may point at tiles that have been overwritten since.
+     */
+    @Override
+    public boolean updatesInPlace() {
+        return true;
+    }
+
+    @Override
+    public long compact() throws IOException {
+        long length = file.length();
+        tree.compact();
+        return length - file.length();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        tree.sync();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoException;
+
+import java.io.IOException;
+import java.util.Set;
+
+
+/**
+ * Periodically compacts the sealed packs of a chunk store in a low priority thread.
+ *
+ * The copy rate is limited by ChunkStore.Settings.compactionBytesPerSecond.
+ */
+public class BackgroundCompactor {
+    public interface ILiveChunksCollector {
+        /**
+         * Collects all live chunks, e.g. using a ReachableChunkCollector on all branch heads. Called after the
+         * compaction has been started.
+         */
+        Set<HashValue> collect() throws IOException, CryptoException;
+    }
+
+    public interface IListener {
+        /**
+         * Called from the compactor thread when a compaction failed. The compactor keeps running and tries again after
+         * the next interval.
+         */
+        void onException(Exception exception);
+    }
+
+    final private ChunkStore chunkStore;
+    final private ILiveChunksCollector collector;
+    final private long intervalMillis;
+    private Thread thread;
+    private volatile long reclaimedBytes = 0;
+    private volatile IListener listener;
+    private volatile Exception lastException;
+
+    public BackgroundCompactor(ChunkStore chunkStore, ILiveChunksCollector collector, long intervalMillis) {
+        this.chunkStore = chunkStore;
+        this.collector = collector;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Runs a single compaction in the calling thread.
+     *
+     * @return the number of bytes that have been reclaimed
+     */
+    public long runOnce() throws IOException, CryptoException {
+        ChunkStore.Compaction compaction = chunkStore.startCompaction();
+        try {
+            long reclaimed = compaction.compact(collector.collect());
+            reclaimedBytes += reclaimed;
+            return reclaimed;
+        } finally {
+            compaction.finish();
+        }
+    }
+
+    synchronized public void start() {
+        if (thread != null)
+            return;
+        thread = new Thread("ChunkStore compactor") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                        runOnce();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        if (isInterrupted())
+                            return;
+                        lastException = e;
+                        IListener currentListener = listener;
+                        if (currentListener != null)
+                            currentListener.onException(e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the compactor thread and waits till a running compaction has been aborted.
+     */
+    public void stop() throws InterruptedException {
+        Thread stopThread;
+        synchronized (this) {
+            stopThread = thread;
+            thread = null;
+        }
+        if (stopThread == null)
+            return;
+        stopThread.interrupt();
+        stopThread.join();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    public void setListener(IListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the exception of the last failed compaction in the compactor thread or null
+     */
+    public Exception getLastException() {
+        return lastException;
+    }
+}
@@ -10,11 +10,10 @@ package org.fejoa.chunkstore;
 import org.fejoa.library.crypto.CryptoHelper;
 
 import java.io.*;
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
@@ -100,21 +99,50 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         public void write(byte[] data) throws IOException {
             if (data.length != tileSize)
                 throw new IOException("Data tile size mismatch");
+            nodeCache.remove(index);
             seekTo();
             file.write(data);
         }
 
+        /**
+         * Uses a positional read, i.e. it does not touch the file position and concurrent readers don't interfere.
+         */
         public byte[] read() throws IOException {
-            seekTo();
+            long position = dataStart() + tileSize * (index - 1);
             byte[] data = new byte[tileSize];
-            file.readFully(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0)
+                    throw new EOFException("Unexpected end of tile " + index);
+            }
             return data;
         }
     }
 
+    /**
+     * Linked list of tiles that have been freed by the commit that replaced the tree of the epoch.
+     */
+    class FreedTiles {
+        final long epoch;
+        final long head;
+        final long tail;
+
+        public FreedTiles(long epoch, long head, long tail) {
+            this.epoch = epoch;
+            this.head = head;
+            this.tail = tail;
+        }
+    }
+
     class TileAllocator {
         long currentFreedTail = 0L;
         long currentFreedHead = 0L;
+        // Tiles that may still be read by a snapshot, oldest epoch first. The tiles freed by a commit are part of the
+        // tree of the replaced epoch and of earlier epochs, i.e. they can be reused when there is no older or equally
+        // old snapshot.
+        final Deque<FreedTiles> deferredFreed = new ArrayDeque<>();
         Tile alloc() throws IOException {
             if (freeTileList != 0) {
                 DeletedNode deletedNode = new DeletedNode(freeTileList);
@@ -122,28 +150,68 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
                 return deletedNode.tile;
             }
             // TODO: check if max number of tiles has been reached
-            Long dataSize = file.length() - dataStart();
-            file.setLength(file.length() + tileSize);
-            return new Tile(dataSize / tileSize + 1);
+            // Round up since the file may end before the data start or within a tile, e.g. when tile writes are
+            // deferred in a batch.
+            long nTiles = (Math.max(0, file.length() - dataStart()) + tileSize - 1) / tileSize;
+            file.setLength(dataStart() + (nTiles + 1) * tileSize);
+            return new Tile(nTiles + 1);
         }
 
         void free(Tile tile) throws IOException {
+            nodeCache.remove(tile.index);
+            // a node that has been modified in the current transaction must not be written anymore
+            if (batchNodes != null)
+                batchNodes.remove(tile.index);
             new DeletedNode(tile).writeDeletedPointer(currentFreedHead);
             currentFreedHead = tile.index;
             if (currentFreedTail == 0L)
                 currentFreedTail = currentFreedHead;
         }
 
+        /**
+         * Must be called while holding the snapshot lock, i.e. no snapshot of the current epoch can be taken in between.
+         */
         void commit() throws IOException {
-            if (currentFreedTail != 0L)
-                new DeletedNode(currentFreedTail).writeDeletedPointer(freeTileList);
+            long oldestSnapshot = openSnapshots.isEmpty() ? Long.MAX_VALUE : openSnapshots.firstKey();
+            while (!deferredFreed.isEmpty() && deferredFreed.peekFirst().epoch < oldestSnapshot) {
+                FreedTiles freedTiles = deferredFreed.removeFirst();
+                addToFreeList(freedTiles.head, freedTiles.tail);
+            }
+            if (currentFreedTail != 0L) {
+                // all open snapshots are of the current or of older epochs
+                if (oldestSnapshot <= epoch)
+                    deferredFreed.addLast(new FreedTiles(epoch, currentFreedHead, currentFreedTail));
+                else
+                    addToFreeList(currentFreedHead, currentFreedTail);
+            }
+
+            currentFreedHead = 0L;
+            currentFreedTail = 0L;
+        }
 
-            freeTileList = currentFreedHead;
+        private void addToFreeList(long head, long tail) throws IOException {
+            new DeletedNode(tail).writeDeletedPointer(freeTileList);
+            freeTileList = head;
+        }
 
+        /**
+         * Forgets about the tiles freed since the last commit. Those tiles are lost but the committed tree stays valid.
+         */
+        void rollback() {
             currentFreedHead = 0L;
             currentFreedTail = 0L;
         }
 
+        /**
+         * Forgets all free tiles, e.g. when the whole file has been rewritten.
+         */
+        void reset() {
+            freeTileList = 0L;
+            currentFreedHead = 0L;
+            currentFreedTail = 0L;
+            deferredFreed.clear();
+        }
+
         int countDeletedTiles() throws IOException {
             int i = 0;
             long current = freeTileList;
@@ -191,10 +259,10 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     }
 
     class Node extends TileNode {
-        final int nodeDepth;
+        int nodeDepth;
         protected Node parent;
         // index of the node in the parent node
-        final private int pointerIndexInParent;
+        private int pointerIndexInParent;
         final int maxNumberOfKeys;
         long deletedPointer;
         final List<byte[]> keys;
@@ -214,10 +282,26 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             pointers = new ArrayList<>(maxNumberOfKeys + 1);
         }
 
+        boolean isLeaf() {
+            return false;
+        }
+
         public Node getParent() {
             return parent;
         }
 
+        /**
+         * Attaches a node that is reused from a previous descent to the current path.
+         */
+        public void setParent(Node parent, int pointerIndexInParent) {
+            this.parent = parent;
+            this.pointerIndexInParent = pointerIndexInParent;
+            if (parent == null)
+                this.nodeDepth = 1;
+            else
+                this.nodeDepth = parent.nodeDepth + 1;
+        }
+
         public int getPointerIndexInParent() {
             return pointerIndexInParent;
         }
@@ -286,8 +370,19 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         public void write() throws IOException {
+            long oldIndex = tile.index;
             prepareForWrite();
             checkWriteable();
+            if (batchNodes != null) {
+                // defer the write till the transaction is committed
+                batchNodes.remove(oldIndex);
+                batchNodes.put(tile.index, this);
+                return;
+            }
+            writeTile();
+        }
+
+        void writeTile() throws IOException {
             ByteArrayOutputStream out = new ByteArrayOutputStream(tileSize);
             DataOutputStream writer = new DataOutputStream(out);
             // deleted node pointer
@@ -297,6 +392,9 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
 
             // write tile to disk
             tile.write(Arrays.copyOf(out.toByteArray(), tileSize));
+            // the new path is read by the next lookup
+            if (!isLeaf())
+                cacheNode(tile.index, new CachedNode(0l, this));
         }
 
         protected void writeKeys(DataOutputStream writer) throws IOException {
@@ -331,6 +429,14 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             onNodeRead();
         }
 
+        void read(CachedNode cachedNode) {
+            deletedPointer = cachedNode.deletedPointer;
+            keys.addAll(cachedNode.keys);
+            pointers.addAll(cachedNode.pointers);
+
+            onNodeRead();
+        }
+
         private boolean isEmpty(byte[] array) {
             int sum = 0;
             for (byte b : array)
@@ -355,25 +461,23 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             }
         }
 
-        public void findPosition(BigInteger key, SearchResult result) {
-            result.foundKey = null;
-            for (int i = 0; i < keys.size(); i++) {
-                BigInteger current = new BigInteger(keys.get(i));
-                result.keyComparison = current.compareTo(key);
-                if (result.keyComparison > 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i;
-                    break;
-                } else if (result.keyComparison == 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i + 1;
-                    result.leftAnchor = this;
-                    result.leftAnchorPointer = i;
-                    break;
-                }
+        public void findPosition(byte[] key, SearchResult result) {
+            // index of the first key that is larger than the key
+            int position = upperBound(keys, key);
+            if (position > 0 && compareKeys(keys.get(position - 1), key) == 0) {
+                result.foundKey = keys.get(position - 1);
+                result.keyComparison = 0;
+                result.keyPosition = position;
+                result.leftAnchor = this;
+                result.leftAnchorPointer = position - 1;
+            } else if (position < keys.size()) {
+                result.foundKey = keys.get(position);
+                result.keyComparison = 1;
+                result.keyPosition = position;
+            } else {
+                result.foundKey = null;
+                result.keyPosition = position;
             }
-            if (result.foundKey == null)
-                result.keyPosition = keys.size();
         }
 
         public Node readChildNode(int pointerIndex) throws IOException {
@@ -413,6 +517,24 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
     }
 
+    /**
+     * Deserialized content of an inner node tile.
+     *
+     * Nodes that have been read are copied on write so the content of a tile only changes after the tile has been freed
+     * or when a newly allocated tile is written. In both cases the cache entry is removed.
+     */
+    class CachedNode {
+        final long deletedPointer;
+        final List<byte[]> keys;
+        final List<IndexType> pointers;
+
+        public CachedNode(long deletedPointer, Node node) {
+            this.deletedPointer = deletedPointer;
+            this.keys = new ArrayList<>(node.keys);
+            this.pointers = new ArrayList<>(node.pointers);
+        }
+    }
+
     class DeletedNode extends Node {
         public DeletedNode(long tileIndex) {
             super(null, 0, new Tile(tileIndex));
@@ -438,6 +560,11 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             super(parent, indexInParent, tile);
         }
 
+        @Override
+        boolean isLeaf() {
+            return true;
+        }
+
         public long getNextPointer() {
             return indexType.toLong(pointers.get(pointers.size() - 1));
         }
@@ -485,19 +612,15 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         @Override
-        public void findPosition(BigInteger key, SearchResult result) {
-            result.foundKey = null;
-            for (int i = 0; i < keys.size(); i++) {
-                BigInteger current = new BigInteger(keys.get(i));
-                result.keyComparison = current.compareTo(key);
-                if (result.keyComparison >= 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i;
-                    break;
-                }
-            }
-            if (result.foundKey == null)
-                result.keyPosition = keys.size();
+        public void findPosition(byte[] key, SearchResult result) {
+            // index of the first key that is not smaller than the key
+            int position = lowerBound(keys, key);
+            result.keyPosition = position;
+            if (position < keys.size()) {
+                result.foundKey = keys.get(position);
+                result.keyComparison = compareKeys(result.foundKey, key);
+            } else
+                result.foundKey = null;
         }
 
         @Override
@@ -544,6 +667,28 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     final private IDataType<IndexType> indexType;
     final private IDataType<DataType> dataType;
     final private TileAllocator tileAllocator;
+    // Modified nodes of the current transaction (batch), indexed by their tile index. Nodes are only written once when
+    // the transaction is committed. Null if there is no transaction in progress.
+    private Map<Long, Node> batchNodes = null;
+    // state of the last committed tree for a rollback
+    private long batchRootTileIndex;
+    private short batchDepth;
+    private long batchFileLength;
+    // Inner nodes by tile index. Tiles are copy on write so an entry only has to be removed when its tile is freed or
+    // rewritten. Every lookup goes through the root and the upper levels so they are cached first; new nodes are not
+    // cached while the cache is full, i.e. readers never wait for each other to reorder or evict entries.
+    final private Map<Long, CachedNode> nodeCache = new ConcurrentHashMap<>();
+    private int nodeCacheCapacity = DEFAULT_NODE_CACHE_CAPACITY;
+
+    final static public int DEFAULT_NODE_CACHE_CAPACITY = 4096;
+    // Incremented every time a new tree is committed. The root and depth fields are modified while writing; the
+    // committed values are the ones snapshots see.
+    private long epoch = 0;
+    private long committedRootTileIndex = 0l;
+    private short committedDepth = 1;
+    // number of open snapshots by epoch
+    final private TreeMap<Long, Integer> openSnapshots = new TreeMap<>();
+    final private Object snapshotLock = new Object();
 
     public BaseBPlusTree(RandomAccessFile file, IDataType<IndexType> indexType, IDataType<DataType> dataType) {
         this.file = file;
@@ -556,6 +701,28 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         return depth;
     }
 
+    /**
+     * @param capacity maximal number of cached inner nodes; 0 disables the cache
+     */
+    public void setNodeCacheCapacity(int capacity) {
+        this.nodeCacheCapacity = capacity;
+        nodeCache.clear();
+    }
+
+    private void cacheNode(long tileIndex, CachedNode node) {
+        // concurrent readers may exceed the capacity by a few entries
+        if (nodeCache.size() < nodeCacheCapacity || nodeCache.containsKey(tileIndex))
+            nodeCache.put(tileIndex, node);
+    }
+
+    public int getNodeCacheCapacity() {
+        return nodeCacheCapacity;
+    }
+
+    public int getCachedNodeCount() {
+        return nodeCache.size();
+    }
+
     public IDataType<IndexType> getIndexType() {
         return indexType;
     }
@@ -572,11 +739,13 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         this.hashSize = (short)hashSize;
         this.tileSize = tileSize;
 
+        nodeCache.clear();
         file.setLength(0);
         writeHeader();
     }
 
     public void open() throws IOException {
+        nodeCache.clear();
         readHeader();
     }
 
@@ -588,6 +757,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         rootTileIndex = indexType.toLong(indexType.read(file));
         depth = file.readShort();
         freeTileList = indexType.toLong(indexType.read(file));
+        publishCommittedTree();
     }
 
     private void writeHeader() throws IOException {
@@ -598,6 +768,15 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         indexType.write(file, indexType.fromLong(rootTileIndex));
         file.writeShort(depth);
         indexType.write(file, indexType.fromLong(freeTileList));
+        publishCommittedTree();
+    }
+
+    private void publishCommittedTree() {
+        synchronized (snapshotLock) {
+            committedRootTileIndex = rootTileIndex;
+            committedDepth = depth;
+            epoch++;
+        }
     }
 
     private long headerSize() {
@@ -665,18 +844,148 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     }
 
     private void commit(long rootNodeIndex) throws IOException {
-        this.tileAllocator.commit();
         this.rootTileIndex = rootNodeIndex;
+        // the transaction is committed at the end
+        if (batchNodes != null)
+            return;
+        // a snapshot of the replaced tree can't be taken after deciding which freed tiles can be reused
+        synchronized (snapshotLock) {
+            this.tileAllocator.commit();
+            writeHeader();
+        }
+    }
 
-        writeHeader();
+    /**
+     * Flushes all written tiles and the header to the disk.
+     */
+    public void sync() throws IOException {
+        file.getChannel().force(false);
     }
 
     public int countDeletedTiles() throws IOException {
         return tileAllocator.countDeletedTiles();
     }
 
-    private void insert(Node insertNode, int insertPosition, BigInteger key, IndexType p1, byte[] rawKey, IndexType p2)
-            throws IOException {
+    /**
+     * @return the number of tiles in the file, i.e. live and deleted tiles
+     */
+    public long getTileCount() throws IOException {
+        return Math.max(0, file.length() - dataStart()) / tileSize;
+    }
+
+    /**
+     * Moves all live tiles to the start of the file and truncates the file.
+     *
+     * The tiles are laid out level by level: the root first, then the inner nodes and then the leaves, each level in key
+     * order. Leaves with adjacent keys are in adjacent tiles and the leaf next pointers are valid again.
+     *
+     * The tree is first copied to the end of the file and the header is switched to the copy so that the start of the
+     * file is unused. Then the final layout is written to the start of the file, the header is switched again and the
+     * file is truncated. The header always points to a complete tree, i.e. a crash at any point leaves a valid tree;
+     * at worst the unused tiles are lost till the next compaction.
+     *
+     * There must be no transaction and no open snapshot or iterator.
+     *
+     * @return the number of tiles that have been removed from the file
+     */
+    public long compact() throws IOException {
+        // no snapshots while the tiles are moved
+        synchronized (snapshotLock) {
+            return compactLocked();
+        }
+    }
+
+    private long compactLocked() throws IOException {
+        if (batchNodes != null)
+            throw new IOException("Transaction in progress");
+        if (!openSnapshots.isEmpty())
+            throw new IOException("Open snapshots");
+
+        long nTiles = getTileCount();
+        long nLiveTiles = 0;
+        if (rootTileIndex != 0) {
+            // count the live tiles level by level
+            List<Long> level = Collections.singletonList(rootTileIndex);
+            for (int levelDepth = 1; levelDepth <= depth; levelDepth++) {
+                nLiveTiles += level.size();
+                if (levelDepth == depth)
+                    break;
+                List<Long> children = new ArrayList<>();
+                for (long tileIndex : level) {
+                    for (IndexType pointer : readNode(tileIndex, null, 0).pointers)
+                        children.add(indexType.toLong(pointer));
+                }
+                level = children;
+            }
+        }
+        if (nLiveTiles == nTiles)
+            return 0;
+
+        if (rootTileIndex != 0) {
+            // free the start of the file
+            relocateTree(nTiles + 1);
+            // write the final layout
+            relocateTree(1);
+        } else {
+            tileAllocator.reset();
+            writeHeader();
+            sync();
+        }
+        file.setLength(dataStart() + nLiveTiles * tileSize);
+        nodeCache.clear();
+        return nTiles - nLiveTiles;
+    }
+
+    /**
+     * Writes a copy of the tree to consecutive tiles starting at firstTile and switches the header to the copy.
+     *
+     * The target tiles must not be used by the tree. All other tiles are unused afterwards; they are not added to the
+     * free list.
+     */
+    private void relocateTree(long firstTile) throws IOException {
+        List<Long> level = Collections.singletonList(rootTileIndex);
+        long levelStart = firstTile;
+        for (int levelDepth = 1; levelDepth <= depth; levelDepth++) {
+            boolean isLeafLevel = levelDepth == depth;
+            // the children of this level follow this level in the same order
+            long nextChild = levelStart + level.size();
+            List<Long> children = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                Tile oldTile = new Tile(level.get(i));
+                Node node = isLeafLevel ? new LeafNode(null, 0, oldTile) : new Node(null, 0, oldTile);
+                node.read();
+                if (isLeafLevel) {
+                    IndexType next = indexType.fromLong(i + 1 < level.size() ? levelStart + i + 1 : 0l);
+                    // the next pointer of an empty leaf is not read
+                    if (node.pointers.size() > node.keys.size())
+                        node.replacePointer(node.pointers.size() - 1, next);
+                    else
+                        node.pointers.add(next);
+                } else {
+                    for (int p = 0; p < node.pointers.size(); p++) {
+                        children.add(indexType.toLong(node.pointers.get(p)));
+                        node.replacePointer(p, indexType.fromLong(nextChild));
+                        nextChild++;
+                    }
+                }
+                node.tile = new Tile(levelStart + i);
+                node.writeTile();
+            }
+            levelStart += level.size();
+            level = children;
+        }
+        sync();
+        rootTileIndex = firstTile;
+        tileAllocator.reset();
+        writeHeader();
+        sync();
+    }
+
+    /**
+     * @return true if the insert node has been split
+     */
+    private boolean insert(Node insertNode, int insertPosition, byte[] key, IndexType p1, byte[] rawKey,
+                           IndexType p2) throws IOException {
         insertNode.add(insertPosition, p1, rawKey, p2);
 
         if (insertNode.keys.size() > insertNode.maxNumberOfKeys) {
@@ -697,13 +1006,15 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             SearchResult inNodePosition = new SearchResult();
             inNodePosition.node = parent;
             parent.findPosition(key, inNodePosition);
-            insert(parent, inNodePosition.keyPosition, new BigInteger(result.key),
+            insert(parent, inNodePosition.keyPosition, result.key,
                     indexType.fromLong(insertNode.tile.index), result.key,
                     indexType.fromLong(result.newNode.tile.index));
+            return true;
         } else {
             insertNode.write();
             // update parent nodes
             updateParentNodes(insertNode);
+            return false;
         }
     }
 
@@ -741,7 +1052,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     public boolean put(HashValue hash, DataType address) throws IOException {
         assert hash.size() == hashSize;
 
-        BigInteger key = new BigInteger(hash.getBytes());
+        byte[] key = hash.getBytes();
         SearchResult result = find(key);
         if (result.foundKey != null && result.keyComparison == 0) {
             // TODO replace
@@ -755,6 +1066,272 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         return true;
     }
 
+    /**
+     * Starts a transaction.
+     *
+     * Nodes that are modified by puts and removes in the transaction are kept in memory and each of them is only
+     * written once when the transaction is committed, followed by a single free list and header update. For example,
+     * many inserts below the same inner node only write this node once instead of copying it for every insert.
+     *
+     * Nothing is written to the tree before the commit, i.e. after a crash or a rollback the tree is at the state of the
+     * last commit. All modified nodes stay in memory till the commit.
+     */
+    public void startTransaction() throws IOException {
+        if (batchNodes != null)
+            throw new IOException("Transaction already in progress");
+        batchRootTileIndex = rootTileIndex;
+        batchDepth = depth;
+        batchFileLength = file.length();
+        batchNodes = new HashMap<>();
+    }
+
+    public boolean isInTransaction() {
+        return batchNodes != null;
+    }
+
+    /**
+     * Writes all nodes that have been modified in the transaction and then the header.
+     */
+    public void commitTransaction() throws IOException {
+        if (batchNodes == null)
+            throw new IOException("No transaction in progress");
+        Map<Long, Node> nodes = batchNodes;
+        batchNodes = null;
+        for (Node node : nodes.values())
+            node.writeTile();
+        commit(rootTileIndex);
+    }
+
+    /**
+     * Discards all modifications of the transaction.
+     *
+     * Tiles that have been taken from the free list in the transaction are lost; their free list links may already
+     * have been overwritten.
+     */
+    public void rollbackTransaction() throws IOException {
+        if (batchNodes == null)
+            throw new IOException("No transaction in progress");
+        batchNodes = null;
+        rootTileIndex = batchRootTileIndex;
+        depth = batchDepth;
+        tileAllocator.rollback();
+        // the tiles that have been appended in the transaction have never been written
+        file.setLength(batchFileLength);
+    }
+
+    /**
+     * Inserts many entries at once. Existing keys are not replaced.
+     *
+     * The entries are sorted so that consecutive keys that fall into the same leaf are inserted without descending the
+     * tree again. The entries are inserted in a transaction; if a transaction is already in progress the entries
+     * become part of it and are only written when it is committed.
+     *
+     * @return the number of inserted entries
+     */
+    public int putAll(List<HashValue> hashes, List<DataType> addresses) throws IOException {
+        assert hashes.size() == addresses.size();
+
+        final List<byte[]> keys = new ArrayList<>(hashes.size());
+        List<Integer> order = new ArrayList<>(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            assert hashes.get(i).size() == hashSize;
+            keys.add(hashes.get(i).getBytes());
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareKeys(keys.get(a), keys.get(b));
+            }
+        });
+
+        int inserted = 0;
+        boolean ownTransaction = batchNodes == null;
+        if (ownTransaction)
+            startTransaction();
+        boolean succeeded = false;
+        try {
+            SearchResult result = null;
+            byte[] leafUpperBound = null;
+            for (int i : order) {
+                byte[] key = keys.get(i);
+                if (result != null && (leafUpperBound == null || compareKeys(key, leafUpperBound) < 0)) {
+                    // still in the range of the previous leaf
+                    result.node.findPosition(key, result);
+                } else {
+                    result = find(key);
+                    leafUpperBound = findUpperBound(result.node);
+                }
+                if (result.isExactMatch())
+                    continue;
+
+                byte[] rawKey = hashes.get(i).getBytes();
+                boolean split = insert(result.node, result.keyPosition, key,
+                        indexType.fromLong(dataType.toLong(addresses.get(i))), rawKey, indexType.fromLong(0l));
+                commit(result.node.rootNode());
+                inserted++;
+                // the leaf range changed, descend again for the next key
+                if (split)
+                    result = null;
+            }
+            succeeded = true;
+        } finally {
+            if (ownTransaction) {
+                if (succeeded)
+                    commitTransaction();
+                else
+                    rollbackTransaction();
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Source of entries in ascending key order, see bulkLoad.
+     */
+    public interface ISortedEntrySource<DataType> {
+        /**
+         * @return the next entry or null if there are no more entries
+         */
+        Entry<DataType> next() throws IOException;
+    }
+
+    /**
+     * Nodes of one level of a bulk load. The items, i.e. the entries of the leaves or the children of the inner nodes,
+     * are distributed evenly over the nodes of the level.
+     */
+    private class BulkLoadLevel {
+        final boolean isLeafLevel;
+        final long firstTile;
+        final long nNodes;
+        final long nItems;
+        long nodeIndex = 0;
+        Node node;
+        // smallest key in the subtree of the current node
+        byte[] firstKey;
+
+        public BulkLoadLevel(boolean isLeafLevel, long firstTile, long nNodes, long nItems) {
+            this.isLeafLevel = isLeafLevel;
+            this.firstTile = firstTile;
+            this.nNodes = nNodes;
+            this.nItems = nItems;
+        }
+
+        private long itemsInCurrentNode() {
+            return nItems / nNodes + (nodeIndex < nItems % nNodes ? 1 : 0);
+        }
+
+        /**
+         * @return the first key and the tile of the node if the node has been completed and written, otherwise null
+         */
+        public Entry<Long> add(byte[] key, IndexType pointer) throws IOException {
+            if (node == null) {
+                Tile tile = new Tile(firstTile + nodeIndex);
+                node = isLeafLevel ? new LeafNode(null, 0, tile) : new Node(null, 0, tile);
+                firstKey = key;
+            }
+            long nItemsInNode;
+            if (isLeafLevel) {
+                node.addRaw(pointer, key);
+                nItemsInNode = node.keys.size();
+            } else {
+                if (!node.pointers.isEmpty())
+                    node.keys.add(key);
+                node.pointers.add(pointer);
+                nItemsInNode = node.pointers.size();
+            }
+            if (nItemsInNode < itemsInCurrentNode())
+                return null;
+
+            if (isLeafLevel) {
+                // the leaves are in consecutive tiles
+                long next = nodeIndex + 1 < nNodes ? node.tile.index + 1 : 0l;
+                node.pointers.add(indexType.fromLong(next));
+            }
+            node.writeTile();
+            Entry<Long> completed = new Entry<>(firstKey, node.tile.index);
+            node = null;
+            nodeIndex++;
+            return completed;
+        }
+    }
+
+    /**
+     * Builds the tree bottom up from entries in ascending key order, e.g. to rebuild an index.
+     *
+     * Every tile is written exactly once: the leaves go into consecutive tiles, followed by the tiles of the inner
+     * levels. The nodes of a level have the same number of entries (+-1), i.e. each node is filled up to the fill factor
+     * and at least half of that.
+     *
+     * @param nEntries the number of entries the source provides
+     * @param fillFactor fraction of the node capacity that is used, e.g. 1 for a read mostly tree or less to leave room
+     *                   for inserts without splitting
+     */
+    public void bulkLoad(long nEntries, ISortedEntrySource<DataType> source, double fillFactor) throws IOException {
+        if (fillFactor <= 0 || fillFactor > 1)
+            throw new IOException("Invalid fill factor: " + fillFactor);
+        if (batchNodes != null)
+            throw new IOException("Transaction in progress");
+        if (rootTileIndex != 0 || freeTileList != 0 || file.length() > dataStart())
+            throw new IOException("Bulk load needs a newly created tree");
+        int maxNumberOfKeys = nKeysPerTile();
+        if (maxNumberOfKeys < 2)
+            throw new IOException("Tile size too small");
+        nodeCache.clear();
+        if (nEntries == 0)
+            return;
+
+        int entriesPerLeaf = Math.max(1, (int)(maxNumberOfKeys * fillFactor));
+        // at least three children so that all inner nodes have a key
+        int childrenPerNode = Math.max(3, Math.min(maxNumberOfKeys + 1, (int)((maxNumberOfKeys + 1) * fillFactor)));
+        List<BulkLoadLevel> levels = new ArrayList<>();
+        long nItems = nEntries;
+        long nNodes = (nItems + entriesPerLeaf - 1) / entriesPerLeaf;
+        long firstTile = 1;
+        levels.add(new BulkLoadLevel(true, firstTile, nNodes, nItems));
+        while (nNodes > 1) {
+            firstTile += nNodes;
+            nItems = nNodes;
+            nNodes = (nItems + childrenPerNode - 1) / childrenPerNode;
+            levels.add(new BulkLoadLevel(false, firstTile, nNodes, nItems));
+        }
+
+        byte[] previousKey = null;
+        for (long i = 0; i < nEntries; i++) {
+            Entry<DataType> entry = source.next();
+            if (entry == null)
+                throw new IOException("Expected " + nEntries + " entries but got " + i);
+            if (entry.getKey().length != hashSize)
+                throw new IOException("Key size mismatch");
+            if (previousKey != null && compareKeys(previousKey, entry.getKey()) >= 0)
+                throw new IOException("Entries are not in ascending key order");
+            previousKey = entry.getKey();
+
+            Entry<Long> completed = levels.get(0).add(entry.getKey(),
+                    indexType.fromLong(dataType.toLong(entry.getValue())));
+            for (int level = 1; completed != null && level < levels.size(); level++)
+                completed = levels.get(level).add(completed.getKey(), indexType.fromLong(completed.getValue()));
+        }
+        if (source.next() != null)
+            throw new IOException("More than " + nEntries + " entries");
+
+        rootTileIndex = firstTile;
+        depth = (short)levels.size();
+        writeHeader();
+    }
+
+    /**
+     * @return the smallest key that is not in the range of the node or null if there is no upper bound
+     */
+    private byte[] findUpperBound(Node node) {
+        while (node.parent != null) {
+            if (node.pointerIndexInParent < node.parent.keys.size())
+                return node.parent.keys.get(node.pointerIndexInParent);
+            node = node.parent;
+        }
+        return null;
+    }
+
     public DataType get(String hash) throws IOException {
         return get(CryptoHelper.fromHex(hash));
     }
@@ -762,7 +1339,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     class SearchResult {
         public Node node;
         public int keyPosition;
-        public BigInteger foundKey;
+        public byte[] foundKey;
         public int keyComparison;
         // Fields if key occurs in a non-leaf node:
         public Node leftAnchor;
@@ -773,7 +1350,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
     }
 
-    private SearchResult find(BigInteger key) throws IOException {
+    private SearchResult find(byte[] key) throws IOException {
         SearchResult result = new SearchResult();
         result.node = readRootNode();
         // find node to insert
@@ -800,30 +1377,506 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
 
     public DataType get(byte[] hash) throws IOException {
         assert hash.length == hashSize;
+        // empty tree; don't allocate a root tile since a get must not modify the tree
+        if (rootTileIndex == 0)
+            return null;
 
-        BigInteger key = new BigInteger(hash);
-        SearchResult result = find(key);
-        if (result.foundKey == null)
+        // the nodes of a running transaction are only in memory
+        if (batchNodes != null) {
+            SearchResult result = find(hash);
+            if (!result.isExactMatch())
+                return null;
+            return dataType.fromLong(indexType.toLong(result.node.pointers.get(result.keyPosition)));
+        }
+
+        return get(rootTileIndex, depth, hash);
+    }
+
+    /**
+     * Looks up a key in the tree with the given root; only reads committed tiles.
+     */
+    private DataType get(long root, short treeDepth, byte[] hash) throws IOException {
+        if (root == 0)
             return null;
-        if (result.keyComparison != 0)
+        // descend through the inner nodes without building Node objects if they are cached
+        long tileIndex = root;
+        for (int level = 1; level < treeDepth; level++) {
+            List<byte[]> keys;
+            List<IndexType> pointers;
+            CachedNode cachedNode = nodeCache.get(tileIndex);
+            if (cachedNode != null) {
+                keys = cachedNode.keys;
+                pointers = cachedNode.pointers;
+            } else {
+                Node node = new Node(null, 0, new Tile(tileIndex));
+                node.read();
+                cacheNode(tileIndex, new CachedNode(node.deletedPointer, node));
+                keys = node.keys;
+                pointers = node.pointers;
+            }
+            if (keys.size() == 0)
+                throw new IOException("Unexpected empty node");
+            tileIndex = indexType.toLong(pointers.get(upperBound(keys, hash)));
+            if (tileIndex == 0l)
+                throw new IOException("Invalid pointer");
+        }
+        return findInLeafTile(new Tile(tileIndex).read(), hash);
+    }
+
+    /**
+     * Binary search in a serialized leaf tile; the keys are compared in place.
+     *
+     * Leaf tile: deleted pointer | (value | key) x number of keys | next pointer | empty key | 0 (if not full)
+     */
+    private DataType findInLeafTile(byte[] tile, byte[] key) {
+        int pointerSize = indexType.size();
+        int entrySize = pointerSize + hashSize;
+        int firstEntry = pointerSize;
+        // empty leaf
+        if (readPointer(tile, firstEntry) == 0l)
             return null;
-        return dataType.fromLong(indexType.toLong(result.node.pointers.get(result.keyPosition)));
+        int low = 0;
+        int high = nKeysPerTile() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int keyOffset = firstEntry + middle * entrySize + pointerSize;
+            // the unused entries at the end are larger than any key
+            int comparison = isEndEntry(tile, keyOffset) ? 1 : compareKeys(tile, keyOffset, key, 0, hashSize);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return dataType.fromLong(readPointer(tile, keyOffset - pointerSize));
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the key at the offset is empty and followed by a 0 pointer, i.e. the end of the keys
+     */
+    private boolean isEndEntry(byte[] tile, int keyOffset) {
+        for (int i = 0; i < hashSize; i++) {
+            if (tile[keyOffset + i] != 0)
+                return false;
+        }
+        return readPointer(tile, keyOffset + hashSize) == 0l;
+    }
+
+    /**
+     * Reads a big endian pointer of the index type size.
+     */
+    private long readPointer(byte[] tile, int offset) {
+        // sign extend like DataInput.readInt
+        long value = tile[offset];
+        for (int i = 1; i < indexType.size(); i++)
+            value = (value << 8) | (tile[offset + i] & 0xFF);
+        return value;
+    }
+
+    /**
+     * Compares two keys in tree order without allocating.
+     *
+     * The tree order is the order of new BigInteger(key), i.e. the first byte is compared signed and the remaining
+     * bytes unsigned.
+     */
+    static public int compareKeys(byte[] a, byte[] b) {
+        assert a.length == b.length;
+        return compareKeys(a, 0, b, 0, a.length);
+    }
+
+    static private int compareKeys(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        if (a[aOffset] != b[bOffset])
+            return a[aOffset] < b[bOffset] ? -1 : 1;
+        for (int i = 1; i < length; i++) {
+            int aByte = a[aOffset + i] & 0xFF;
+            int bByte = b[bOffset + i] & 0xFF;
+            if (aByte != bByte)
+                return aByte < bByte ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the index of the first key that is not smaller than the key
+     */
+    static private int lowerBound(List<byte[]> keys, byte[] key) {
+        int low = 0;
+        int high = keys.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareKeys(keys.get(middle), key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first key that is larger than the key
+     */
+    static private int upperBound(List<byte[]> keys, byte[] key) {
+        int low = 0;
+        int high = keys.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareKeys(keys.get(middle), key) <= 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    public interface IEntryVisitor<DataType> {
+        void visit(byte[] key, DataType value) throws IOException;
+    }
+
+    /**
+     * Visits all entries in key order.
+     */
+    public void visitEntries(IEntryVisitor<DataType> visitor) throws IOException {
+        EntryIterator iterator = iterator();
+        try {
+            while (iterator.hasNext()) {
+                Entry<DataType> entry = iterator.next();
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    static public class Entry<DataType> {
+        final private byte[] key;
+        final private DataType value;
+
+        public Entry(byte[] key, DataType value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public DataType getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Read only view of the last committed tree.
+     *
+     * The tree is copy on write, i.e. the tiles of the snapshot are not modified by later writes. Tiles that are freed
+     * by later commits are only reused after all snapshots that may read them have been closed (epoch based
+     * reclamation). Snapshots never see later writes, including uncommitted writes of a running transaction.
+     *
+     * A snapshot can be read by any number of threads while the tree is written and must be closed when not needed
+     * anymore. Open snapshots let the file grow since freed tiles are not reused.
+     */
+    public class Snapshot implements Closeable {
+        final private long rootTileIndex;
+        final private short depth;
+        final private long epoch;
+        private boolean closed = false;
+
+        private Snapshot(long rootTileIndex, short depth, long epoch) {
+            this.rootTileIndex = rootTileIndex;
+            this.depth = depth;
+            this.epoch = epoch;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public DataType get(byte[] hash) throws IOException {
+            assert hash.length == hashSize;
+            checkOpen();
+            return BaseBPlusTree.this.get(rootTileIndex, depth, hash);
+        }
+
+        public DataType get(String hash) throws IOException {
+            return get(CryptoHelper.fromHex(hash));
+        }
+
+        /**
+         * Iterates over all entries in key order. The iterator is only valid while the snapshot is open.
+         */
+        public EntryIterator iterator() throws IOException {
+            return iterator(null, null);
+        }
+
+        /**
+         * @see BaseBPlusTree#iterator(byte[], byte[])
+         */
+        public EntryIterator iterator(byte[] from, byte[] to) throws IOException {
+            checkOpen();
+            return new EntryIterator(this, false, from, to, null);
+        }
+
+        /**
+         * @see BaseBPlusTree#prefixIterator(byte[])
+         */
+        public EntryIterator prefixIterator(byte[] prefix) throws IOException {
+            checkOpen();
+            return new EntryIterator(this, false, prefixStart(prefix), null, prefix);
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed)
+                throw new IOException("Snapshot closed");
+        }
+
+        /**
+         * Allows the tiles of the snapshot to be reused by the next commit.
+         */
+        @Override
+        public void close() {
+            synchronized (snapshotLock) {
+                if (closed)
+                    return;
+                closed = true;
+                int count = openSnapshots.get(epoch);
+                if (count == 1)
+                    openSnapshots.remove(epoch);
+                else
+                    openSnapshots.put(epoch, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the last committed tree.
+     */
+    public Snapshot snapshot() {
+        synchronized (snapshotLock) {
+            Integer count = openSnapshots.get(epoch);
+            openSnapshots.put(epoch, count == null ? 1 : count + 1);
+            return new Snapshot(committedRootTileIndex, committedDepth, epoch);
+        }
+    }
+
+    /**
+     * Iterates over all entries of the last committed tree in key order.
+     */
+    public EntryIterator iterator() throws IOException {
+        return iterator(null, null);
+    }
+
+    /**
+     * Iterates over the entries in the range [from, to) in key order.
+     *
+     * @param from first key or null to start at the smallest key
+     * @param to end key (exclusive) or null to iterate to the end
+     */
+    public EntryIterator iterator(byte[] from, byte[] to) throws IOException {
+        return new EntryIterator(snapshot(), true, from, to, null);
+    }
+
+    /**
+     * Iterates over all entries whose key starts with the prefix, e.g. to resolve an abbreviated hash.
+     */
+    public EntryIterator prefixIterator(byte[] prefix) throws IOException {
+        return new EntryIterator(snapshot(), true, prefixStart(prefix), null, prefix);
+    }
+
+    /**
+     * @return the smallest key with the prefix or null for an empty prefix
+     */
+    private byte[] prefixStart(byte[] prefix) throws IOException {
+        if (prefix.length > hashSize)
+            throw new IOException("Prefix longer than the key size");
+        // only the first byte is signed so padding with zeros works for the others
+        return prefix.length == 0 ? null : Arrays.copyOf(prefix, hashSize);
+    }
+
+    /**
+     * Ordered iterator over a snapshot of the tree.
+     *
+     * The tree can be modified while iterating, see Snapshot. The tree is walked from the root since the leaf next
+     * pointers are not updated when a neighbour leaf is copied on write.
+     *
+     * An iterator that has been created by the tree owns its snapshot and must be closed if it is not iterated to the
+     * end.
+     */
+    public class EntryIterator implements Closeable {
+        class Frame {
+            final List<byte[]> keys;
+            final List<IndexType> pointers;
+            int position;
+
+            public Frame(List<byte[]> keys, List<IndexType> pointers, int position) {
+                this.keys = keys;
+                this.pointers = pointers;
+                this.position = position;
+            }
+        }
+
+        final private Snapshot snapshot;
+        // close the snapshot with the iterator
+        final private boolean ownsSnapshot;
+        final private byte[] to;
+        final private byte[] prefix;
+        // path from the root to the current leaf
+        final private Deque<Frame> path = new ArrayDeque<>();
+        private Entry<DataType> nextEntry;
+        private boolean closed = false;
+
+        private EntryIterator(Snapshot snapshot, boolean ownsSnapshot, byte[] from, byte[] to, byte[] prefix)
+                throws IOException {
+            this.snapshot = snapshot;
+            this.ownsSnapshot = ownsSnapshot;
+            this.to = to;
+            this.prefix = prefix;
+            try {
+                if (snapshot.rootTileIndex != 0)
+                    descend(snapshot.rootTileIndex, 1, from);
+                nextEntry = findNext();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the nodes from the tile down to the leaf that contains the from key (or the first leaf).
+         */
+        private void descend(long tileIndex, int level, byte[] from) throws IOException {
+            while (true) {
+                boolean isLeaf = level == snapshot.depth;
+                Frame frame = readFrame(tileIndex, isLeaf);
+                if (isLeaf) {
+                    frame.position = from == null ? 0 : lowerBound(frame.keys, from);
+                    path.push(frame);
+                    return;
+                }
+                frame.position = from == null ? 0 : upperBound(frame.keys, from);
+                path.push(frame);
+                tileIndex = indexType.toLong(frame.pointers.get(frame.position));
+                level++;
+            }
+        }
+
+        private Frame readFrame(long tileIndex, boolean isLeaf) throws IOException {
+            if (!isLeaf) {
+                CachedNode cachedNode = nodeCache.get(tileIndex);
+                if (cachedNode != null)
+                    return new Frame(cachedNode.keys, cachedNode.pointers, 0);
+            }
+            // don't populate the cache; the tile may already have been freed by a newer version of the tree
+            Node node = isLeaf ? new LeafNode(null, 0, new Tile(tileIndex)) : new Node(null, 0, new Tile(tileIndex));
+            node.read();
+            return new Frame(node.keys, node.pointers, 0);
+        }
+
+        private Entry<DataType> findNext() throws IOException {
+            while (!path.isEmpty()) {
+                Frame leaf = path.peek();
+                if (leaf.position < leaf.keys.size()) {
+                    byte[] key = leaf.keys.get(leaf.position);
+                    DataType value = dataType.fromLong(indexType.toLong(leaf.pointers.get(leaf.position)));
+                    leaf.position++;
+                    if (to != null && compareKeys(key, to) >= 0)
+                        break;
+                    if (prefix != null && !hasPrefix(key))
+                        break;
+                    return new Entry<>(key, value);
+                }
+                // go up till there is a next child and then down to its first leaf
+                path.pop();
+                int level = snapshot.depth - 1;
+                while (!path.isEmpty()) {
+                    Frame parent = path.peek();
+                    parent.position++;
+                    if (parent.position < parent.pointers.size()) {
+                        descend(indexType.toLong(parent.pointers.get(parent.position)), level + 1, null);
+                        break;
+                    }
+                    path.pop();
+                    level--;
+                }
+            }
+            path.clear();
+            close();
+            return null;
+        }
+
+        private boolean hasPrefix(byte[] key) {
+            for (int i = 0; i < prefix.length; i++) {
+                if (key[i] != prefix[i])
+                    return false;
+            }
+            return true;
+        }
+
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        public Entry<DataType> next() throws IOException {
+            if (nextEntry == null)
+                throw new NoSuchElementException();
+            Entry<DataType> entry = nextEntry;
+            nextEntry = findNext();
+            return entry;
+        }
+
+        /**
+         * Closes the snapshot if the iterator owns it.
+         */
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            nextEntry = null;
+            path.clear();
+            if (ownsSnapshot)
+                snapshot.close();
+        }
     }
 
     private Node readNode(long index, Node parent, int inParentIndex) throws IOException {
+        Node batchNode = getBatchNode(index, parent, inParentIndex);
+        if (batchNode != null)
+            return batchNode;
         Tile tile = new Tile(index);
         Node node = new Node(parent, inParentIndex, tile);
+        CachedNode cachedNode = nodeCache.get(index);
+        if (cachedNode != null) {
+            node.read(cachedNode);
+            return node;
+        }
         node.read();
+        cacheNode(index, new CachedNode(node.deletedPointer, node));
         return node;
     }
 
     private LeafNode readLeafNode(long index, Node parent, int inParentIndex) throws IOException {
+        Node batchNode = getBatchNode(index, parent, inParentIndex);
+        if (batchNode != null)
+            return (LeafNode)batchNode;
         Tile tile = new Tile(index);
         LeafNode node = new LeafNode(parent, inParentIndex, tile);
         node.read();
         return node;
     }
 
+    /**
+     * @return the in memory version of a node that has been modified in the current batch or null
+     */
+    private Node getBatchNode(long index, Node parent, int inParentIndex) {
+        if (batchNodes == null)
+            return null;
+        Node node = batchNodes.get(index);
+        if (node != null)
+            node.setParent(parent, inParentIndex);
+        return node;
+    }
+
     private Node readRootNode() throws IOException {
         Node rootNode;
         if (rootTileIndex == 0) {
@@ -956,8 +2009,8 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             LeafNode left;
             LeafNode right;
             FindNeighbourResult neighbour;
-            if ((rightNeighbour == null && leftNeighbour != null)
-                    || leftNeighbour.node.keys.size() >= rightNeighbour.node.keys.size()) {
+            if (leftNeighbour != null && (rightNeighbour == null
+                    || leftNeighbour.node.keys.size() >= rightNeighbour.node.keys.size())) {
                 // get keys from the the left
                 left = leftNeighbour.node;
                 right = findRightLeafNode(node);
@@ -1061,8 +2114,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     }
 
     public boolean remove(byte[] key) throws IOException {
-        BigInteger keyNumber = new BigInteger(key);
-        SearchResult result = find(keyNumber);
+        SearchResult result = find(key);
         if (!result.isExactMatch())
             return false;
 
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bloom filter for chunk hashes. Since the keys are already cryptographic hashes the bit indices are derived directly
+ * from the key bytes (double hashing), no further hashing is needed.
+ *
+ * The filter is not thread safe for writers, i.e. add must not run concurrently with mightContain.
+ *
+ * Disk structure:
+ * version (short) | number of hash functions (int) | number of bits (long) | number of entries (long) |
+ * capacity (long) | bits (long[])
+ */
+public class BloomFilter {
+    private short version = 1;
+    final private int nHashFunctions;
+    final private long nBits;
+    final private long capacity;
+    final private long[] bits;
+    private long nEntries = 0;
+
+    // statistics
+    final private AtomicLong positives = new AtomicLong();
+    final private AtomicLong negatives = new AtomicLong();
+    final private AtomicLong falsePositives = new AtomicLong();
+
+    private BloomFilter(long nBits, int nHashFunctions, long capacity) {
+        // round up to whole words
+        this.nBits = Math.max(64, (nBits + 63) / 64 * 64);
+        this.nHashFunctions = nHashFunctions;
+        this.capacity = capacity;
+        this.bits = new long[(int)(this.nBits / 64)];
+    }
+
+    /**
+     * @param capacity expected number of entries
+     * @param falsePositiveRate the false positive rate when the filter holds capacity entries
+     */
+    static public BloomFilter create(long capacity, double falsePositiveRate) {
+        capacity = Math.max(1, capacity);
+        double ln2 = Math.log(2);
+        long nBits = (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int nHashFunctions = Math.max(1, (int)Math.round((double)nBits / capacity * ln2));
+        return new BloomFilter(nBits, nHashFunctions, capacity);
+    }
+
+    static public BloomFilter read(File file) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            short version = inputStream.readShort();
+            if (version != 1)
+                throw new IOException("Unsupported bloom filter version: " + version);
+            int nHashFunctions = inputStream.readInt();
+            long nBits = inputStream.readLong();
+            long nEntries = inputStream.readLong();
+            long capacity = inputStream.readLong();
+            if (nHashFunctions <= 0 || nBits <= 0 || nBits % 64 != 0 || nBits / 64 > Integer.MAX_VALUE)
+                throw new IOException("Invalid bloom filter header");
+            BloomFilter filter = new BloomFilter(nBits, nHashFunctions, capacity);
+            filter.nEntries = nEntries;
+            for (int i = 0; i < filter.bits.length; i++)
+                filter.bits[i] = inputStream.readLong();
+            return filter;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Writes the filter to a temporary file first and then renames it so that a crash never leaves a partial filter.
+     */
+    public void write(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+        try {
+            outputStream.writeShort(version);
+            outputStream.writeInt(nHashFunctions);
+            outputStream.writeLong(nBits);
+            outputStream.writeLong(nEntries);
+            outputStream.writeLong(capacity);
+            for (long word : bits)
+                outputStream.writeLong(word);
+            outputStream.flush();
+            fileOutputStream.getChannel().force(false);
+        } finally {
+            outputStream.close();
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Failed to rename " + tmpFile.getPath());
+    }
+
+    public void add(HashValue hash) {
+        add(hash.getBytes());
+    }
+
+    public void add(byte[] hash) {
+        ByteBuffer buffer = ByteBuffer.wrap(hash);
+        long h1 = buffer.getLong(0);
+        long h2 = buffer.getLong(8) | 1;
+        for (int i = 0; i < nHashFunctions; i++) {
+            long bit = bitIndex(h1 + i * h2);
+            bits[(int)(bit >>> 6)] |= 1L << bit;
+        }
+        nEntries++;
+    }
+
+    /**
+     * @return false if the hash is definitely not in the filter
+     */
+    public boolean mightContain(byte[] hash) {
+        ByteBuffer buffer = ByteBuffer.wrap(hash);
+        long h1 = buffer.getLong(0);
+        long h2 = buffer.getLong(8) | 1;
+        for (int i = 0; i < nHashFunctions; i++) {
+            long bit = bitIndex(h1 + i * h2);
+            if ((bits[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+                negatives.incrementAndGet();
+                return false;
+            }
+        }
+        positives.incrementAndGet();
+        return true;
+    }
+
+    private long bitIndex(long hash) {
+        return (hash & Long.MAX_VALUE) % nBits;
+    }
+
+    /**
+     * Should be called when mightContain returned true but the hash turned out not to be there.
+     */
+    public void reportFalsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    public long getEntryCount() {
+        return nEntries;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getPositiveCount() {
+        return positives.get();
+    }
+
+    public long getNegativeCount() {
+        return negatives.get();
+    }
+
+    public long getFalsePositiveCount() {
+        return falsePositives.get();
+    }
+
+    /**
+     * @return the measured rate of lookups for missing hashes that passed the filter
+     */
+    public double getFalsePositiveRate() {
+        long falsePositiveCount = falsePositives.get();
+        long missing = falsePositiveCount + negatives.get();
+        if (missing == 0)
+            return 0;
+        return (double)falsePositiveCount / missing;
+    }
+
+    public void resetStatistics() {
+        positives.set(0);
+        negatives.set(0);
+        falsePositives.set(0);
+    }
+}
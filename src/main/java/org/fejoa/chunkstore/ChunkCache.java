@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.support.DoubleLinkedList;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Least recently used cache of raw chunk data that is bounded by the total size of the cached data.
+ *
+ * Chunks are content addressed so cached entries never become invalid. The cached arrays are shared with all callers
+ * and must not be modified.
+ */
+public class ChunkCache {
+    static private class CacheEntry extends DoubleLinkedList.Entry {
+        final HashValue hash;
+        final byte[] data;
+
+        public CacheEntry(HashValue hash, byte[] data) {
+            this.hash = hash;
+            this.data = data;
+        }
+    }
+
+    final private long maxSize;
+    private long size = 0;
+    final private Map<HashValue, CacheEntry> entries = new HashMap<>();
+    // the least recently used entry is at the head
+    final private DoubleLinkedList<CacheEntry> lruList = new DoubleLinkedList<>();
+
+    // statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxSize maximal number of bytes of chunk data the cache holds
+     */
+    public ChunkCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    synchronized public byte[] get(HashValue hash) {
+        CacheEntry entry = entries.get(hash);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (entry != lruList.getTail()) {
+            lruList.remove(entry);
+            lruList.addLast(entry);
+        }
+        return entry.data;
+    }
+
+    synchronized public void put(HashValue hash, byte[] data) {
+        if (data.length > maxSize || entries.containsKey(hash))
+            return;
+
+        CacheEntry entry = new CacheEntry(hash, data);
+        entries.put(hash, entry);
+        lruList.addLast(entry);
+        size += data.length;
+
+        while (size > maxSize) {
+            CacheEntry head = lruList.getHead();
+            lruList.remove(head);
+            entries.remove(head.hash);
+            size -= head.data.length;
+            evictions++;
+        }
+    }
+
+    synchronized public void clear() {
+        entries.clear();
+        while (lruList.size() > 0)
+            lruList.remove(lruList.getHead());
+        size = 0;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    synchronized public long getSize() {
+        return size;
+    }
+
+    synchronized public int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized public long getHitCount() {
+        return hits;
+    }
+
+    synchronized public long getMissCount() {
+        return misses;
+    }
+
+    synchronized public long getEvictionCount() {
+        return evictions;
+    }
+
+    synchronized public void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+}
@@ -11,6 +11,9 @@ import org.fejoa.library.crypto.CryptoException;
 
 import java.io.*;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 
 class ChunkPointer implements IChunkPointer {
@@ -165,6 +168,31 @@ public class ChunkContainer extends ChunkContainerNode {
             return cachedChunk;
         }
 
+        /**
+         * @return true if getDataChunk() doesn't need to read the chunk
+         */
+        boolean isDataChunkLoaded() {
+            return cachedChunk != null || pointer.getCachedChunk() != null;
+        }
+
+        /**
+         * Returns a task that reads the data chunk without touching the container, i.e. the task can run in another
+         * thread while the container is used. The result is passed back with setDataChunk().
+         */
+        Callable<DataChunk> createReadTask() {
+            final BoxPointer boxPointer = pointer.getBoxPointer();
+            return new Callable<DataChunk>() {
+                @Override
+                public DataChunk call() throws Exception {
+                    return readDataChunk(boxPointer);
+                }
+            };
+        }
+
+        void setDataChunk(DataChunk dataChunk) {
+            this.cachedChunk = dataChunk;
+        }
+
         public int getDataLength() {
             return chunkDataLength;
         }
@@ -243,7 +271,12 @@ public class ChunkContainer extends ChunkContainerNode {
         return current;
     }
 
-    private IChunkPointer putDataChunk(DataChunk blob) throws IOException, CryptoException {
+    /**
+     * Hashes and stores a data chunk without touching the container, i.e. this can be called from another thread if
+     * the chunk accessor supports concurrent putChunk() calls. The returned pointer is inserted with
+     * insert(IChunkPointer, long).
+     */
+    IChunkPointer putDataChunk(DataChunk blob) throws IOException, CryptoException {
         byte[] rawBlob = blob.getData();
         HashValue hash = blob.hash();
         HashValue boxedHash = blobAccessor.putChunk(rawBlob).key;
@@ -266,17 +299,13 @@ public class ChunkContainer extends ChunkContainerNode {
         ChunkContainerNode node = this;
         int index = 0;
         for (int i = 0; i < that.getLevel(); i++) {
-            long nodePosition = 0;
             long inNodeInsertPosition = position - currentPosition;
-            index = 0;
-            IChunkPointer pointer = null;
-            for (; index < node.size(); index++) {
-                pointer = node.get(index);
-                long dataLength = pointer.getDataLength();
-                if (nodePosition + dataLength > inNodeInsertPosition)
-                    break;
-                nodePosition += dataLength;
-            }
+            index = node.findSlot(inNodeInsertPosition);
+            // appending: continue at the end of the last child node
+            if (i < that.getLevel() - 1 && index == node.size() && index > 0)
+                index--;
+            long nodePosition = node.getSlotDataPosition(index);
+            IChunkPointer pointer = index < node.size() ? node.get(index) : null;
             currentPosition += nodePosition;
             if (nodePosition > inNodeInsertPosition
                     || (i == that.getLevel() - 1 && nodePosition != inNodeInsertPosition)) {
@@ -297,6 +326,32 @@ public class ChunkContainer extends ChunkContainerNode {
         containerNode.addBlobPointer(searchResult.index, blobChunkPointer);
     }
 
+    /**
+     * Inserts a data chunk pointer created by putDataChunk().
+     */
+    void insert(final IChunkPointer blobChunkPointer, final long position) throws IOException, CryptoException {
+        InsertSearchResult searchResult = findInsertPosition(position);
+        searchResult.containerNode.addBlobPointer(searchResult.index, blobChunkPointer);
+    }
+
+    /**
+     * Waits for a chunk task and rethrows its IOException or CryptoException.
+     */
+    static <T> T waitFor(Future<T> future) throws IOException, CryptoException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof CryptoException)
+                throw (CryptoException)cause;
+            throw new IOException(cause);
+        }
+    }
+
     public void append(final DataChunk blob) throws IOException, CryptoException {
         insert(blob, getDataLength());
     }
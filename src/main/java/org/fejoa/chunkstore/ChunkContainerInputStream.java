@@ -11,46 +11,235 @@ import org.fejoa.library.crypto.CryptoException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
+/**
+ * Reads the data of a chunk container.
+ *
+ * The bulk methods, i.e. read(byte[], int, int), skip() and transferTo(), copy whole slices of the current data chunk
+ * and only look up the next chunk when the current one is exhausted.
+ *
+ * The container length is read once, i.e. create a new stream after the container has been modified.
+ *
+ * In read-ahead mode the next data chunks are read by an executor while the current chunk is consumed. The chunk
+ * pointers are still resolved in the reading thread, the executor only reads the chunks through the chunk accessor,
+ * i.e. the accessor must support concurrent getChunk() calls. Prefetched chunks are not cached in the container.
+ */
 public class ChunkContainerInputStream extends InputStream {
     final private ChunkContainer container;
     private long position = 0;
+    private long dataLength = -1;
     private ChunkContainer.DataChunkPointer chunkPosition;
 
+    static private class PrefetchedChunk {
+        final ChunkContainer.DataChunkPointer pointer;
+        // null if the chunk is already loaded
+        final Future<DataChunk> future;
+
+        PrefetchedChunk(ChunkContainer.DataChunkPointer pointer, Future<DataChunk> future) {
+            this.pointer = pointer;
+            this.future = future;
+        }
+
+        long end() {
+            return pointer.position + pointer.getDataLength();
+        }
+    }
+
+    final private ExecutorService executor;
+    final private int readAheadChunks;
+    // chunks following the current chunk in sequential order
+    final private ArrayDeque<PrefetchedChunk> prefetched = new ArrayDeque<>();
+    private long nextPrefetchPosition;
+
     public ChunkContainerInputStream(ChunkContainer container) {
         this.container = container;
+        this.executor = null;
+        this.readAheadChunks = 0;
+    }
+
+    /**
+     * Creates a stream in read-ahead mode.
+     *
+     * @param executor reads the chunks; not shut down by the stream
+     * @param readAheadChunks number of data chunks that are read ahead of the current chunk
+     */
+    public ChunkContainerInputStream(ChunkContainer container, ExecutorService executor, int readAheadChunks) {
+        if (readAheadChunks < 1)
+            throw new IllegalArgumentException("Invalid read-ahead window: " + readAheadChunks);
+        this.container = container;
+        this.executor = executor;
+        this.readAheadChunks = readAheadChunks;
+    }
+
+    private long getDataLength() throws IOException {
+        if (dataLength < 0)
+            dataLength = container.getDataLength();
+        return dataLength;
     }
 
     @Override
     public int read() throws IOException {
-        if (position >= container.getDataLength())
+        if (position >= getDataLength())
             return -1;
-        DataChunk current;
-        try {
-            current = validateCurrentChunk();
-        } catch (CryptoException e) {
-            throw new IOException(e);
-        }
+        DataChunk current = currentChunk();
         int b = current.getData()[(int)(position - chunkPosition.position)] & 0xff;
         position++;
         return b;
     }
 
-    public void seek(long position) throws IOException, CryptoException {
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset)
+            throw new IndexOutOfBoundsException();
+        if (length == 0)
+            return 0;
+        long end = getDataLength();
+        if (position >= end)
+            return -1;
+
+        int bytesRead = 0;
+        while (bytesRead < length && position < end) {
+            DataChunk current = currentChunk();
+            int chunkOffset = (int)(position - chunkPosition.position);
+            int n = Math.min(length - bytesRead, current.getDataLength() - chunkOffset);
+            System.arraycopy(current.getData(), chunkOffset, buffer, offset + bytesRead, n);
+            bytesRead += n;
+            position += n;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Only moves the position; the chunks in between are not read.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+        long skipped = Math.min(n, getDataLength() - position);
+        if (skipped <= 0)
+            return 0;
+        seek(position + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int)Math.min(Integer.MAX_VALUE, Math.max(0, getDataLength() - position));
+    }
+
+    /**
+     * Writes the remaining data to the output stream, one data chunk slice at a time.
+     *
+     * @return the number of bytes written
+     */
+    public long transferTo(OutputStream outputStream) throws IOException {
+        long end = getDataLength();
+        long transferred = 0;
+        while (position < end) {
+            DataChunk current = currentChunk();
+            int chunkOffset = (int)(position - chunkPosition.position);
+            int n = current.getDataLength() - chunkOffset;
+            outputStream.write(current.getData(), chunkOffset, n);
+            transferred += n;
+            position += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * Reads the remaining data into a new array.
+     */
+    public byte[] readAll() throws IOException {
+        long remaining = getDataLength() - position;
+        if (remaining > Integer.MAX_VALUE)
+            throw new IOException("Data too large: " + remaining);
+        byte[] data = new byte[(int)Math.max(0, remaining)];
+        int offset = 0;
+        while (offset < data.length)
+            offset += read(data, offset, data.length - offset);
+        return data;
+    }
+
+    public void seek(long position) throws IOException {
         this.position = position;
-        if (chunkPosition != null && (position >= chunkPosition.position + chunkPosition.getDataChunk().getDataLength()
+        if (chunkPosition != null && (position >= chunkPosition.position + chunkPosition.getDataLength()
                     || position < chunkPosition.position)) {
                 chunkPosition = null;
         }
     }
 
+    private DataChunk currentChunk() throws IOException {
+        try {
+            return validateCurrentChunk();
+        } catch (CryptoException e) {
+            throw new IOException(e);
+        }
+    }
+
     private DataChunk validateCurrentChunk() throws IOException, CryptoException {
         if (chunkPosition != null
-                && position < (chunkPosition.position + chunkPosition.getDataChunk().getDataLength())) {
+                && position < (chunkPosition.position + chunkPosition.getDataLength())) {
             return chunkPosition.getDataChunk();
         }
+        if (executor != null)
+            return nextPrefetchedChunk();
         chunkPosition = container.get(position);
         return chunkPosition.getDataChunk();
     }
+
+    private DataChunk nextPrefetchedChunk() throws IOException, CryptoException {
+        // drop skipped chunks; start over if we left the prefetched range
+        while (!prefetched.isEmpty() && prefetched.peekFirst().end() <= position)
+            cancel(prefetched.pollFirst());
+        if (prefetched.isEmpty() || prefetched.peekFirst().pointer.position > position) {
+            cancelPrefetching();
+            nextPrefetchPosition = position;
+        }
+        // the next chunk plus the read-ahead window, i.e. the window stays full while the next chunk is consumed
+        prefetch(readAheadChunks + 1);
+
+        PrefetchedChunk next = prefetched.pollFirst();
+        chunkPosition = next.pointer;
+        if (next.future != null)
+            chunkPosition.setDataChunk(ChunkContainer.waitFor(next.future));
+        return chunkPosition.getDataChunk();
+    }
+
+    private void prefetch(int nChunks) throws IOException, CryptoException {
+        long end = getDataLength();
+        while (prefetched.size() < nChunks && nextPrefetchPosition < end) {
+            ChunkContainer.DataChunkPointer pointer = container.get(nextPrefetchPosition);
+            Future<DataChunk> future = null;
+            if (!pointer.isDataChunkLoaded())
+                future = executor.submit(pointer.createReadTask());
+            prefetched.addLast(new PrefetchedChunk(pointer, future));
+            nextPrefetchPosition = pointer.position + pointer.getDataLength();
+        }
+    }
+
+    static private void cancel(PrefetchedChunk chunk) {
+        if (chunk.future != null)
+            chunk.future.cancel(false);
+    }
+
+    private void cancelPrefetching() {
+        for (PrefetchedChunk chunk : prefetched)
+            cancel(chunk);
+        prefetched.clear();
+    }
+
+    /**
+     * Cancels the outstanding read-ahead.
+     */
+    @Override
+    public void close() throws IOException {
+        cancelPrefetching();
+        super.close();
+    }
 }
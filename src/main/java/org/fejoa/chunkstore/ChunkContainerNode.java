@@ -31,6 +31,9 @@ public class ChunkContainerNode implements IChunk {
     private byte[] data;
     private HashValue dataHash;
     final private List<IChunkPointer> slots = new ArrayList<>();
+    // dataOffsets[i] is the data position of slot i relative to this node, dataOffsets[size()] the data length; built
+    // lazily and dropped by invalidate(), i.e. whenever this node or a child node changes
+    private long[] dataOffsets;
     protected ChunkSplitter nodeSplitter;
 
     static public ChunkContainerNode create(IChunkAccessor blobAccessor, ChunkContainerNode parent,
@@ -98,10 +101,18 @@ public class ChunkContainerNode implements IChunk {
         IChunk cachedChunk = pointer.getCachedChunk();
         if (cachedChunk != null)
             return (DataChunk)cachedChunk;
-        DataInputStream inputStream = blobAccessor.getChunk(pointer.getBoxPointer());
+        DataChunk dataChunk = readDataChunk(pointer.getBoxPointer());
+        pointer.setCachedChunk(dataChunk);
+        return dataChunk;
+    }
+
+    /**
+     * Reads a data chunk without caching it, i.e. without touching the node.
+     */
+    protected DataChunk readDataChunk(BoxPointer boxPointer) throws IOException, CryptoException {
+        DataInputStream inputStream = blobAccessor.getChunk(boxPointer);
         DataChunk dataChunk = new DataChunk();
         dataChunk.read(inputStream);
-        pointer.setCachedChunk(dataChunk);
         return dataChunk;
     }
 
@@ -119,10 +130,45 @@ public class ChunkContainerNode implements IChunk {
     }
 
     protected int calculateDataLength() throws IOException {
-        int length = 0;
-        for (IChunkPointer pointer : slots)
-            length += pointer.getDataLength();
-        return length;
+        long[] offsets = getDataOffsets();
+        return (int)offsets[offsets.length - 1];
+    }
+
+    private long[] getDataOffsets() throws IOException {
+        if (dataOffsets != null)
+            return dataOffsets;
+        long[] offsets = new long[slots.size() + 1];
+        for (int i = 0; i < slots.size(); i++)
+            offsets[i + 1] = offsets[i] + slots.get(i).getDataLength();
+        dataOffsets = offsets;
+        return offsets;
+    }
+
+    /**
+     * Binary search for the slot that contains a data position.
+     *
+     * @param dataPosition relative to this node
+     * @return the index of the first slot that ends after dataPosition or size() if there is no such slot
+     */
+    protected int findSlot(long dataPosition) throws IOException {
+        long[] offsets = getDataOffsets();
+        int low = 0;
+        int high = slots.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (offsets[middle + 1] > dataPosition)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return low;
+    }
+
+    /**
+     * @return the data position of slot index relative to this node; for index == size() the data length
+     */
+    protected long getSlotDataPosition(int index) throws IOException {
+        return getDataOffsets()[index];
     }
 
     public int getBlobLength() {
@@ -154,20 +200,15 @@ public class ChunkContainerNode implements IChunk {
         if (dataPosition > node.getDataLength())
             return null;
 
-        long position = 0;
-        for (int i = 0; i < node.slots.size(); i++) {
-            IChunkPointer pointer = node.slots.get(i);
-            long dataLength = pointer.getDataLength();
-            if (position + dataLength > dataPosition)
-                return new SearchResult(position, pointer, node);
-            position += dataLength;
-        }
-        return new SearchResult(position, null, node);
+        int index = node.findSlot(dataPosition);
+        IChunkPointer pointer = index < node.size() ? node.get(index) : null;
+        return new SearchResult(node.getSlotDataPosition(index), pointer, node);
     }
 
     @Override
     public void read(DataInputStream inputStream) throws IOException {
         slots.clear();
+        dataOffsets = null;
         int nSlots = inputStream.readInt();
         for (int i = 0; i < nSlots; i++) {
             IChunkPointer pointer = new ChunkPointer(that.getLevel() - 1);
@@ -407,6 +448,7 @@ public class ChunkContainerNode implements IChunk {
     protected void invalidate() {
         data = null;
         dataHash = null;
+        dataOffsets = null;
         onDisk = false;
         if (parent != null)
             parent.invalidate();
@@ -13,13 +13,30 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 public class ChunkContainerOutputStream extends OutputStream {
     private interface ITransaction {
         void write(int i) throws IOException;
+        void write(byte[] buf, int offset, int length) throws IOException;
         void finish() throws IOException;
+        void insertPendingChunks() throws IOException;
+    }
+
+    static private class PendingChunk {
+        final long position;
+        final Future<IChunkPointer> future;
+
+        PendingChunk(long position, Future<IChunkPointer> future) {
+            this.position = position;
+            this.future = future;
+        }
     }
 
     class OverwriteTransaction implements ITransaction {
@@ -31,6 +48,8 @@ public class ChunkContainerOutputStream extends OutputStream {
         private boolean appending = false;
         private ChunkContainer.DataChunkPointer lastDeletedPointer;
         private ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        // chunks that are stored by the executor, in insert order
+        final private ArrayDeque<PendingChunk> pendingChunks = new ArrayDeque<>();
 
         public OverwriteTransaction(final long seekPosition, final long containerSize) throws IOException,
                 CryptoException {
@@ -53,8 +72,7 @@ public class ChunkContainerOutputStream extends OutputStream {
             removeChunk(lastDeletedPointer.position, lastDeletedPointer.chunkDataLength);
             writeStartPosition = lastDeletedPointer.position;
 
-            for (int i = 0; i < seekPosition - writeStartPosition; i++)
-                write(chunk.data[i]);
+            write(chunk.data, 0, (int)(seekPosition - writeStartPosition));
         }
 
         private void removeChunk(long position, long size) throws IOException, CryptoException {
@@ -64,14 +82,13 @@ public class ChunkContainerOutputStream extends OutputStream {
 
         // write remaining data till we reached the end or a known chunk position
         private void finalizeWrite() throws IOException, CryptoException {
-            while (lastDeletedPointer != null) {
+            // the unflushed data may reach into chunks that have not been removed yet
+            while (!appending && bytesWritten > bytesDeleted)
+                overwriteNextChunk();
+            if (lastDeletedPointer != null && bytesDeleted > bytesWritten) {
                 byte[] data = lastDeletedPointer.getDataChunk().getData();
-                long bytesToWrite = bytesDeleted - bytesWritten;
-                if (bytesToWrite <= 0)
-                    break;
-                long start = data.length - bytesToWrite;
-                for (int i = (int)start; i < data.length; i++)
-                    write(data[i]);
+                int bytesToWrite = (int)(bytesDeleted - bytesWritten);
+                write(data, data.length - bytesToWrite, bytesToWrite);
             }
             flushChunk();
         }
@@ -106,10 +123,52 @@ public class ChunkContainerOutputStream extends OutputStream {
             }
         }
 
+        /**
+         * Splits the data into chunks. Full chunks are inserted directly; only the unfinished tail is buffered.
+         */
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            int end = offset + length;
+            while (offset < end) {
+                if (lastDeletedPointer == null) {
+                    try {
+                        overwriteNextChunk();
+                    } catch (CryptoException e) {
+                        throw new IOException(e);
+                    }
+                }
+                int boundary = chunkSplitter.findBoundary(buf, offset, end - offset);
+                if (boundary < 0) {
+                    outputStream.write(buf, offset, end - offset);
+                    bytesWritten += end - offset;
+                    return;
+                }
+                bytesWritten += boundary - offset;
+                chunkSplitter.reset();
+                if (outputStream.size() == 0) {
+                    flushChunk(Arrays.copyOfRange(buf, offset, boundary));
+                } else {
+                    outputStream.write(buf, offset, boundary - offset);
+                    flushChunk();
+                }
+                offset = boundary;
+            }
+        }
+
         private void flushChunk() throws IOException {
             byte[] data = outputStream.toByteArray();
+            outputStream.reset();
+            flushChunk(data);
+        }
+
+        private void flushChunk(byte[] data) throws IOException {
             if (data.length == 0)
                 return;
+            // when appending no existing chunks are touched, i.e. the container is only needed to insert the chunks
+            if (executor != null && appending) {
+                submitChunk(data);
+                return;
+            }
             try {
                 container.insert(new DataChunk(data), writeStartPosition + bytesFlushed);
                 bytesFlushed += data.length;
@@ -121,7 +180,52 @@ public class ChunkContainerOutputStream extends OutputStream {
             } catch (CryptoException e) {
                 throw new IOException(e);
             }
-            outputStream = new ByteArrayOutputStream();
+        }
+
+        private void submitChunk(byte[] data) throws IOException {
+            final DataChunk dataChunk = new DataChunk(data);
+            Future<IChunkPointer> future = executor.submit(new Callable<IChunkPointer>() {
+                @Override
+                public IChunkPointer call() throws Exception {
+                    return container.putDataChunk(dataChunk);
+                }
+            });
+            pendingChunks.addLast(new PendingChunk(writeStartPosition + bytesFlushed, future));
+            bytesFlushed += data.length;
+
+            try {
+                // wait if too many chunks are pending; insert the chunks that are already stored
+                while (pendingChunks.size() > maxPendingChunks
+                        || (!pendingChunks.isEmpty() && pendingChunks.peekFirst().future.isDone())) {
+                    insertNextPendingChunk();
+                }
+            } catch (CryptoException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private void insertNextPendingChunk() throws IOException, CryptoException {
+            PendingChunk pendingChunk = pendingChunks.pollFirst();
+            IChunkPointer pointer;
+            try {
+                pointer = ChunkContainer.waitFor(pendingChunk.future);
+            } catch (IOException | CryptoException e) {
+                for (PendingChunk chunk : pendingChunks)
+                    chunk.future.cancel(false);
+                pendingChunks.clear();
+                throw e;
+            }
+            container.insert(pointer, pendingChunk.position);
+        }
+
+        @Override
+        public void insertPendingChunks() throws IOException {
+            try {
+                while (!pendingChunks.isEmpty())
+                    insertNextPendingChunk();
+            } catch (CryptoException e) {
+                throw new IOException(e);
+            }
         }
 
         @Override
@@ -131,11 +235,14 @@ public class ChunkContainerOutputStream extends OutputStream {
             } catch (CryptoException e) {
                 throw new IOException(e);
             }
+            insertPendingChunks();
         }
     }
 
     final private ChunkContainer container;
     final private ChunkSplitter chunkSplitter;
+    final private ExecutorService executor;
+    final private int maxPendingChunks;
     private ITransaction currentTransaction;
     private long position = 0;
 
@@ -146,10 +253,36 @@ public class ChunkContainerOutputStream extends OutputStream {
     public ChunkContainerOutputStream(ChunkContainer container, ChunkSplitter chunkSplitter) throws IOException {
         this.container = container;
         this.chunkSplitter = chunkSplitter;
+        this.executor = null;
+        this.maxPendingChunks = 0;
+        seek(container.getDataLength());
+    }
+
+    /**
+     * Creates a pipelined stream: the data is split in the writing thread, the executor hashes and stores the chunks
+     * in parallel and the stored chunks are inserted into the container in order by the writing thread. This only
+     * applies to appended data; overwritten chunks are written synchronously.
+     *
+     * The chunk accessor must support concurrent putChunk() calls.
+     *
+     * @param executor stores the chunks; not shut down by the stream
+     * @param maxPendingChunks maximal number of chunks that are stored but not yet inserted; the writer blocks when
+     *                         more chunks are pending
+     */
+    public ChunkContainerOutputStream(ChunkContainer container, ChunkSplitter chunkSplitter, ExecutorService executor,
+                                      int maxPendingChunks) throws IOException {
+        if (maxPendingChunks < 1)
+            throw new IllegalArgumentException("Invalid number of pending chunks: " + maxPendingChunks);
+        this.container = container;
+        this.chunkSplitter = chunkSplitter;
+        this.executor = executor;
+        this.maxPendingChunks = maxPendingChunks;
         seek(container.getDataLength());
     }
 
     public long length() throws IOException {
+        if (currentTransaction != null)
+            currentTransaction.insertPendingChunks();
         return container.getDataLength();
     }
 
@@ -173,6 +306,13 @@ public class ChunkContainerOutputStream extends OutputStream {
         currentTransaction.write(i);
     }
 
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buf.length - offset)
+            throw new IndexOutOfBoundsException();
+        currentTransaction.write(buf, offset, length);
+    }
+
     @Override
     public void flush() throws IOException {
         super.flush();
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+
+/**
+ * Index that maps the hashes of the chunks in a pack to their position in the pack.
+ *
+ * The chunk store only needs point lookups by hash, so any on-disk map can serve as the index. The type is chosen when
+ * the store is created and recorded at the start of the index file:
+ *
+ * Index file:
+ * ------------------
+ * type (short) | index data
+ * ------------------
+ *
+ * The B+ tree index starts directly with the tree header; the first field of the tree header is the tree version 1,
+ * which doubles as the B+ tree type. This keeps index files written before there were other index types readable.
+ *
+ * Lookups may run concurrently but updates need exclusive access.
+ */
+public interface ChunkIndex {
+    enum Type {
+        BPLUS_TREE((short)1),
+        EXTENSIBLE_HASH((short)2);
+
+        final private short id;
+
+        Type(short id) {
+            this.id = id;
+        }
+
+        public short getId() {
+            return id;
+        }
+
+        static public Type fromId(short id) throws IOException {
+            for (Type type : values()) {
+                if (type.id == id)
+                    return type;
+            }
+            throw new IOException("Unknown chunk index type: " + id);
+        }
+
+        /**
+         * Reads the type from the start of an index file.
+         */
+        static public Type read(RandomAccessFile file) throws IOException {
+            file.seek(0);
+            return fromId(file.readShort());
+        }
+    }
+
+    Type getType();
+
+    /**
+     * @return the position of the chunk in the pack or null
+     */
+    Long get(byte[] hash) throws IOException;
+
+    /**
+     * Adds chunks that are not in the index yet.
+     */
+    void putAll(List<HashValue> hashes, List<Long> positions) throws IOException;
+
+    void visitEntries(BaseBPlusTree.IEntryVisitor<Long> visitor) throws IOException;
+
+    /**
+     * @return true if putAll() overwrites existing index data in place, i.e. a crash while updating the index can lose
+     * entries that have been synced before. The store then rebuilds such an index from the pack after a crash.
+     */
+    boolean updatesInPlace();
+
+    /**
+     * Gives unused space in the index file back to the file system.
+     *
+     * @return the number of bytes the index file shrank
+     */
+    long compact() throws IOException;
+
+    void sync() throws IOException;
+}
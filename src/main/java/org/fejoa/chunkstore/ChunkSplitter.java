@@ -34,6 +34,46 @@ abstract public class ChunkSplitter extends OutputStream {
         return isTriggered();
     }
 
+    /**
+     * Feeds the bytes buf[offset, offset + length) into the splitter until it triggers.
+     *
+     * Like update() the triggered state is kept till reset() is called.
+     *
+     * @return the cut offset, i.e. the index in buf after the byte that triggered the splitter, or -1 if all bytes have
+     * been consumed without a trigger
+     */
+    public int findBoundary(byte[] buf, int offset, int length) {
+        int boundary = findBoundaryInternal(buf, offset, length);
+        if (boundary >= 0)
+            triggered = true;
+        return boundary;
+    }
+
+    /**
+     * Subclasses can override this to process a block of bytes without calling updateInternal() for each byte.
+     *
+     * @return the index after the triggering byte or -1
+     */
+    protected int findBoundaryInternal(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (updateInternal(buf[i]))
+                return i + 1;
+        }
+        return -1;
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            int boundary = findBoundary(buf, offset, end - offset);
+            if (boundary < 0)
+                return;
+            offset = boundary;
+        }
+    }
+
     public boolean isTriggered() {
         return triggered;
     }
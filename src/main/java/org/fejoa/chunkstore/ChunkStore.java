@@ -12,12 +12,71 @@ import org.fejoa.library.crypto.CryptoHelper;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class ChunkStore {
+    static public class Settings {
+        public PackFile.ReadMode packReadMode = PackFile.ReadMode.SEEK;
+        // size of the mapped pack segments when using PackFile.ReadMode.MAPPED
+        public int mappedSegmentSize = PackFile.DEFAULT_MAPPED_SEGMENT_SIZE;
+        // Deflater level for chunks in the pack file or PackFile.NO_COMPRESSION
+        public int packCompressionLevel = PackFile.NO_COMPRESSION;
+        // the pack and the index are synced and the write ahead log is cleared when it grew larger than this
+        public long walCheckpointSize = 16 * 1024 * 1024;
+        // keep a bloom filter next to the index to answer most negative lookups without an index lookup
+        public boolean useBloomFilter = false;
+        public long bloomFilterCapacity = 1024 * 1024;
+        public double bloomFilterFalsePositiveRate = 0.01;
+        // maximal number of bytes in the chunk cache; 0 disables the cache
+        public long chunkCacheSize = 8 * 1024 * 1024;
+        // the active pack is sealed when it grew larger than this; 0 disables automatic sealing
+        public long sealPackSize = 1024L * 1024 * 1024;
+        // a sealed pack is rewritten by a compaction when at least this fraction of its chunks is unreachable
+        public double compactionMinDeadRatio = 0.5;
+        // maximal number of bytes per second a compaction copies; 0 means unlimited
+        public long compactionBytesPerSecond = 0;
+        // index of the active pack; only used when creating a store, an opened store uses the recorded index type
+        public ChunkIndex.Type indexType = ChunkIndex.Type.BPLUS_TREE;
+
+        static public Settings getDefault() {
+            return new Settings();
+        }
+
+        static public Settings getMapped() {
+            Settings settings = getDefault();
+            settings.packReadMode = PackFile.ReadMode.MAPPED;
+            return settings;
+        }
+
+        /**
+         * Settings for many concurrent readers, e.g. on a server.
+         */
+        static public Settings getConcurrent() {
+            Settings settings = getDefault();
+            settings.packReadMode = PackFile.ReadMode.POSITIONAL;
+            settings.useBloomFilter = true;
+            return settings;
+        }
+    }
+
+    /**
+     * Publishes a committed transaction, e.g. by adding the new head to a branch log.
+     */
+    public interface ICommitPublisher {
+        void publish() throws IOException;
+    }
+
     /**
-     * TODO: make the transaction actually do something, i.e. make a transaction atomic
+     * Puts are written to the write ahead log and only become durable and go into the pack file when a transaction is
+     * committed. There is only one pending transaction per store, i.e. committing a transaction commits all pending
+     * puts. Pending chunks can already be read from the store.
      */
     public class Transaction {
         public byte[] getChunk(HashValue hash) throws IOException {
@@ -28,51 +87,895 @@ public class ChunkStore {
             return ChunkStore.this.put(data);
         }
 
+        /**
+         * Puts many chunks at once. The index is updated in a single batch when the transaction is committed.
+         */
+        public List<PutResult<HashValue>> putAll(List<byte[]> chunks) throws IOException {
+            // hash outside the write lock
+            List<HashValue> hashes = new ArrayList<>(chunks.size());
+            for (byte[] data : chunks)
+                hashes.add(new HashValue(CryptoHelper.sha256Hash(data)));
+            return ChunkStore.this.putAll(hashes, chunks);
+        }
+
         public boolean contains(HashValue hash) throws IOException {
-            return ChunkStore.this.hasChunk(hash);
+            // the transaction may reference the chunk without putting it again
+            return ChunkStore.this.hasChunk(hash, true);
         }
 
         public void commit() throws IOException {
-            currentTransaction = null;
+            ChunkStore.this.commit();
+            synchronized (ChunkStore.this) {
+                if (currentTransaction == this)
+                    currentTransaction = null;
+            }
+        }
+
+        /**
+         * Commits the transaction and publishes it. A compaction can't start before the publisher returned, i.e. the
+         * live chunks of a compaction always include the published head and the chunks the transaction referenced
+         * can't be dropped in between.
+         */
+        public void commit(ICommitPublisher publisher) throws IOException {
+            beginPublishing();
+            try {
+                ChunkStore.this.commit();
+                publisher.publish();
+            } finally {
+                endPublishing();
+            }
+            synchronized (ChunkStore.this) {
+                if (currentTransaction == this)
+                    currentTransaction = null;
+            }
+        }
+    }
+
+    /**
+     * A pack that doesn't change anymore and is indexed by an immutable sorted index.
+     *
+     * The store holds a reference while the pack is in the list of sealed packs and readers hold a reference while they
+     * read from the pack outside the tree lock. The pack file is closed when the last reference has been released,
+     * e.g. after a compaction replaced the pack.
+     */
+    static private class SealedPack {
+        final int id;
+        final PackFile packFile;
+        final SealedPackIndex index;
+        final private AtomicInteger references = new AtomicInteger(1);
+
+        public SealedPack(int id, PackFile packFile, SealedPackIndex index) {
+            this.id = id;
+            this.packFile = packFile;
+            this.index = index;
+        }
+
+        /**
+         * Must only be called while the pack is in the list of sealed packs, i.e. while holding the tree lock.
+         */
+        void acquire() {
+            references.incrementAndGet();
+        }
+
+        void release() throws IOException {
+            if (references.decrementAndGet() == 0)
+                packFile.close();
         }
     }
 
-    final private BPlusTree tree;
-    final private PackFile packFile;
+    static private class ChunkLocation {
+        final PackFile packFile;
+        final long position;
+        // null if the chunk is in the active pack
+        final SealedPack sealedPack;
+
+        public ChunkLocation(PackFile packFile, long position) {
+            this.packFile = packFile;
+            this.position = position;
+            this.sealedPack = null;
+        }
+
+        public ChunkLocation(SealedPack sealedPack, long position) {
+            this.packFile = sealedPack.packFile;
+            this.position = position;
+            this.sealedPack = sealedPack;
+        }
+    }
+
+    final private File dir;
+    final private String name;
+    final private Settings settings;
+    // index of the active pack
+    final private RandomAccessFile indexFile;
+    private ChunkIndex chunkIndex;
+    // the pack new chunks are appended to
+    private PackFile packFile;
+    // most recently sealed pack first; the list is replaced when a pack is sealed
+    private List<SealedPack> sealedPacks = new ArrayList<>();
+    private int nextSealedPackId = 1;
+    // chunks that already existed when a transaction put or checked them since the last commit, i.e. the pending
+    // transaction may reference them
+    final private Set<HashValue> referencedChunks
+            = Collections.newSetFromMap(new ConcurrentHashMap<HashValue, Boolean>());
+    // chunks the running compaction must keep; null if no compaction is running
+    private volatile Set<HashValue> protectedChunks = null;
+    private Compaction currentCompaction = null;
+    // number of transactions that are being committed and published; a compaction waits till there are none
+    private int nPublishing = 0;
+    final private WriteAheadLog writeAheadLog;
+    final private long walCheckpointSize;
+    final private File bloomFilterFile;
+    // null if not used
+    private BloomFilter bloomFilter;
+    // null if not used
+    final private ChunkCache chunkCache;
     private Transaction currentTransaction;
+    // uncommitted chunks and their position in the write ahead log
+    final private Map<HashValue, Long> pendingChunks = new ConcurrentHashMap<>();
+    // Readers only hold the read lock while looking up the index; the pack is append only and readers don't need a lock
+    // when using a MAPPED or POSITIONAL pack read mode. The single writer only takes the write lock for the index update.
+    final private ReadWriteLock treeLock = new ReentrantReadWriteLock();
+    final private Object writeLock = new Object();
 
-    protected ChunkStore(File dir, String name) throws FileNotFoundException {
-        this.tree = new BPlusTree(new RandomAccessFile(new File(dir, name + ".idx"), "rw"));
-        this.packFile = new PackFile(new RandomAccessFile(new File(dir, name + ".pack"), "rw"));
+    protected ChunkStore(File dir, String name, Settings settings) throws FileNotFoundException {
+        this.dir = dir;
+        this.name = name;
+        this.settings = settings;
+        this.indexFile = new RandomAccessFile(new File(dir, name + ".idx"), "rw");
+        this.packFile = openPackFile(activePackFile(), "rw");
+        this.writeAheadLog = new WriteAheadLog(new RandomAccessFile(new File(dir, name + ".wal"), "rw"));
+        this.walCheckpointSize = settings.walCheckpointSize;
+        this.bloomFilterFile = new File(dir, name + ".bloom");
+        this.chunkCache = settings.chunkCacheSize > 0 ? new ChunkCache(settings.chunkCacheSize) : null;
+    }
+
+    /**
+     * For stores that don't have their own storage but delegate to other stores, e.g. the ShardedChunkStore. Such a
+     * store has to override the public methods and return its own Transaction subclass.
+     */
+    protected ChunkStore(Settings settings) {
+        this.dir = null;
+        this.name = null;
+        this.settings = settings;
+        this.indexFile = null;
+        this.writeAheadLog = null;
+        this.walCheckpointSize = settings.walCheckpointSize;
+        this.bloomFilterFile = null;
+        this.chunkCache = null;
     }
 
     static public ChunkStore create(File dir, String name) throws IOException {
-        ChunkStore chunkStore = new ChunkStore(dir, name);
-        chunkStore.tree.create(hashSize(), 1024);
-        chunkStore.packFile.create(hashSize());
+        return create(dir, name, Settings.getDefault());
+    }
+
+    static public ChunkStore create(File dir, String name, Settings settings) throws IOException {
+        ChunkStore chunkStore = new ChunkStore(dir, name, settings);
+        chunkStore.createActivePack(settings.indexType);
+        chunkStore.writeAheadLog.create(hashSize());
+        if (settings.useBloomFilter) {
+            chunkStore.bloomFilter = BloomFilter.create(settings.bloomFilterCapacity,
+                    settings.bloomFilterFalsePositiveRate);
+            chunkStore.bloomFilter.write(chunkStore.bloomFilterFile);
+        }
         return chunkStore;
     }
 
     static public ChunkStore open(File dir, String name) throws IOException {
-        ChunkStore chunkStore = new ChunkStore(dir, name);
-        chunkStore.tree.open();
-        chunkStore.packFile.open();
+        return open(dir, name, Settings.getDefault());
+    }
+
+    static public ChunkStore open(File dir, String name, Settings settings) throws IOException {
+        List<Integer> sealedPackIds = finishSealing(dir, name);
+        ChunkStore chunkStore = new ChunkStore(dir, name, settings);
+        chunkStore.openSealedPacks(sealedPackIds);
+        if (!sealedPackIds.isEmpty() && chunkStore.packFile.length() == 0) {
+            // the active pack has been sealed but there was no new active pack yet; the index of the sealed pack is
+            // still there
+            chunkStore.createActivePack(chunkStore.indexFile.length() > 0
+                    ? ChunkIndex.Type.read(chunkStore.indexFile) : settings.indexType);
+        } else {
+            chunkStore.chunkIndex = openIndex(chunkStore.indexFile);
+            chunkStore.packFile.open();
+        }
+        chunkStore.writeAheadLog.open(hashSize());
+        // Chunks are only appended to the pack when committing the log, i.e. the pack may end with an incomplete
+        // record if the log is not empty. New records must not end up behind it.
+        if (!chunkStore.writeAheadLog.isEmpty())
+            chunkStore.packFile.truncateIncompleteRecord();
+        // The log is only cleared after the index has been synced, i.e. if there is anything in the log the index may
+        // have been modified since the last sync. An index that is updated in place may have lost older entries when
+        // the store crashed.
+        if (chunkStore.chunkIndex.updatesInPlace() && !chunkStore.writeAheadLog.isEmpty())
+            chunkStore.rebuildActiveIndex();
+        if (settings.useBloomFilter)
+            chunkStore.openBloomFilter(settings);
+        chunkStore.recover();
         return chunkStore;
     }
 
+    /**
+     * Rebuilds the index of the active pack from the pack file, e.g. when the index has been lost or damaged or to
+     * rewrite the index with a better fill. The store must not be open.
+     *
+     * The bloom filter is removed and rebuilt from the new index the next time the store is opened. The new index is
+     * always a B+ tree index since it is bulk loaded.
+     *
+     * @param fillFactor fraction of the index tiles that is used, see BaseBPlusTree.bulkLoad
+     * @return the number of indexed chunks
+     */
+    static public long rebuildIndex(File dir, String name, double fillFactor) throws IOException {
+        return rebuildIndex(dir, name, fillFactor, new PackIndexRebuilder(dir));
+    }
+
+    static public long rebuildIndex(File dir, String name, double fillFactor, PackIndexRebuilder rebuilder)
+            throws IOException {
+        File packFile = new File(dir, name + ".pack");
+        if (!packFile.exists())
+            throw new IOException("Missing pack file: " + packFile.getPath());
+        PackFile pack = new PackFile(new RandomAccessFile(packFile, "r"));
+        try {
+            pack.open();
+            // build the index next to the old one so that a failed rebuild doesn't leave a broken index
+            File indexFile = new File(dir, name + ".idx");
+            File newIndexFile = new File(dir, name + ".idx.new");
+            RandomAccessFile newIndex = new RandomAccessFile(newIndexFile, "rw");
+            long nEntries;
+            try {
+                BPlusTree tree = new BPlusTree(newIndex);
+                tree.create(hashSize(), BPlusTreeChunkIndex.TILE_SIZE);
+                nEntries = rebuilder.rebuild(pack, tree, fillFactor);
+                tree.sync();
+            } catch (IOException e) {
+                newIndex.close();
+                newIndexFile.delete();
+                throw e;
+            }
+            newIndex.close();
+            if (indexFile.exists() && !indexFile.delete())
+                throw new IOException("Failed to replace index: " + indexFile.getPath());
+            if (!newIndexFile.renameTo(indexFile))
+                throw new IOException("Failed to replace index: " + indexFile.getPath());
+            new File(dir, name + ".bloom").delete();
+            return nEntries;
+        } finally {
+            pack.close();
+        }
+    }
+
+    /**
+     * Reads the bloom filter or rebuilds it from the index if it is missing, broken or overfull. Chunks committed after
+     * the filter has been written are added when recovering the write ahead log.
+     */
+    private void openBloomFilter(Settings settings) throws IOException {
+        if (bloomFilterFile.exists()) {
+            try {
+                bloomFilter = BloomFilter.read(bloomFilterFile);
+                if (bloomFilter.getEntryCount() <= bloomFilter.getCapacity())
+                    return;
+            } catch (IOException e) {
+                // rebuild it
+            }
+        }
+
+        final long[] nEntries = {0};
+        chunkIndex.visitEntries(new BaseBPlusTree.IEntryVisitor<Long>() {
+            @Override
+            public void visit(byte[] key, Long value) {
+                nEntries[0]++;
+            }
+        });
+        for (SealedPack sealedPack : sealedPacks)
+            nEntries[0] += sealedPack.index.size();
+        final BloomFilter filter = BloomFilter.create(Math.max(settings.bloomFilterCapacity, 2 * nEntries[0]),
+                settings.bloomFilterFalsePositiveRate);
+        chunkIndex.visitEntries(new BaseBPlusTree.IEntryVisitor<Long>() {
+            @Override
+            public void visit(byte[] key, Long value) {
+                filter.add(key);
+            }
+        });
+        for (SealedPack sealedPack : sealedPacks) {
+            for (int i = 0; i < sealedPack.index.size(); i++)
+                filter.add(sealedPack.index.getHash(i));
+        }
+        filter.write(bloomFilterFile);
+        bloomFilter = filter;
+    }
+
+    /**
+     * @return the bloom filter, e.g. to query its statistics, or null if the store doesn't use a bloom filter
+     */
+    public BloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * @return the chunk cache, e.g. to query its statistics, or null if the store doesn't use a cache
+     */
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    private File activePackFile() {
+        return new File(dir, name + ".pack");
+    }
+
+    static private File sealedPackFile(File dir, String name, int id) {
+        return new File(dir, name + "." + id + ".pack");
+    }
+
+    static private File sealedIndexFile(File dir, String name, int id) {
+        return new File(dir, name + "." + id + ".sidx");
+    }
+
+    private PackFile openPackFile(File file, String mode) throws FileNotFoundException {
+        PackFile pack = new PackFile(new RandomAccessFile(file, mode), settings.packReadMode,
+                settings.mappedSegmentSize);
+        pack.setCompressionLevel(settings.packCompressionLevel);
+        return pack;
+    }
+
+    private void createActivePack(ChunkIndex.Type indexType) throws IOException {
+        chunkIndex = createIndex(indexType);
+        packFile.create(hashSize());
+    }
+
+    private ChunkIndex createIndex(ChunkIndex.Type indexType) throws IOException {
+        switch (indexType) {
+            case BPLUS_TREE:
+                return BPlusTreeChunkIndex.create(indexFile, hashSize());
+            case EXTENSIBLE_HASH:
+                return ExtensibleHashChunkIndex.create(indexFile, hashSize());
+            default:
+                throw new IOException("Unsupported chunk index type: " + indexType);
+        }
+    }
+
+    /**
+     * Recreates the index of the active pack from the records in the pack. If the rebuild is interrupted the log is
+     * still not empty and the index is rebuilt again.
+     */
+    private void rebuildActiveIndex() throws IOException {
+        final Map<HashValue, Long> entries = new LinkedHashMap<>();
+        packFile.visitRecords(new PackFile.IRecordVisitor() {
+            @Override
+            public void visit(HashValue hash, long position) throws IOException {
+                // A chunk may have been appended again when recovering the log. The later copy wins since the earlier
+                // one may have been lost in the crash.
+                entries.put(hash, position);
+            }
+        });
+        chunkIndex = createIndex(chunkIndex.getType());
+        chunkIndex.putAll(new ArrayList<>(entries.keySet()), new ArrayList<>(entries.values()));
+        chunkIndex.sync();
+    }
+
+    static private ChunkIndex openIndex(RandomAccessFile indexFile) throws IOException {
+        ChunkIndex.Type type = ChunkIndex.Type.read(indexFile);
+        switch (type) {
+            case BPLUS_TREE:
+                return BPlusTreeChunkIndex.open(indexFile);
+            case EXTENSIBLE_HASH:
+                return ExtensibleHashChunkIndex.open(indexFile);
+            default:
+                throw new IOException("Unsupported chunk index type: " + type);
+        }
+    }
+
+    /**
+     * Completes a sealing that has been interrupted after the sealed index has been written.
+     *
+     * @return the ids of all sealed packs
+     */
+    static private List<Integer> finishSealing(File dir, String name) throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        String[] fileNames = dir.list();
+        if (fileNames == null)
+            return ids;
+        String prefix = name + ".";
+        for (String fileName : fileNames) {
+            if (!fileName.startsWith(prefix) || !fileName.endsWith(".sidx"))
+                continue;
+            try {
+                ids.add(Integer.parseInt(fileName.substring(prefix.length(), fileName.length() - ".sidx".length())));
+            } catch (NumberFormatException e) {
+                // not one of our files
+            }
+        }
+        Collections.sort(ids);
+
+        for (int id : ids) {
+            File sealedPack = sealedPackFile(dir, name, id);
+            if (sealedPack.exists())
+                continue;
+            // the index has been written but the active pack has not been renamed yet
+            if (!new File(dir, name + ".pack").renameTo(sealedPack))
+                throw new IOException("Missing sealed pack: " + sealedPack.getPath());
+        }
+        return ids;
+    }
+
+    private void openSealedPacks(List<Integer> ids) throws IOException {
+        List<SealedPack> packs = new ArrayList<>();
+        for (int id : ids) {
+            SealedPackIndex index = SealedPackIndex.open(sealedIndexFile(dir, name, id));
+            if (index.getHashSize() != hashSize())
+                throw new IOException("Hash size mismatch in sealed pack index " + id);
+            PackFile pack = openPackFile(sealedPackFile(dir, name, id), "r");
+            pack.open();
+            // most recent first
+            packs.add(0, new SealedPack(id, pack, index));
+            nextSealedPackId = id + 1;
+        }
+        sealedPacks = packs;
+    }
+
+    /**
+     * Seals the active pack.
+     *
+     * A sorted index with a fan-out table is written for the active pack, the pack is renamed to a sealed pack and new
+     * chunks go into a new active pack. Lookups in sealed packs only need a binary search in the memory mapped index.
+     */
+    public void sealPack() throws IOException {
+        synchronized (writeLock) {
+            // sort the entries in unsigned hash order
+            final TreeMap<HashValue, Long> entries = new TreeMap<>();
+            chunkIndex.visitEntries(new BaseBPlusTree.IEntryVisitor<Long>() {
+                @Override
+                public void visit(byte[] key, Long value) {
+                    entries.put(new HashValue(key), value);
+                }
+            });
+            if (entries.isEmpty())
+                return;
+
+            packFile.sync();
+            int id = nextSealedPackId;
+            File sealedIndex = sealedIndexFile(dir, name, id);
+            SealedPackIndex.write(sealedIndex, hashSize(), new ArrayList<>(entries.keySet()),
+                    new ArrayList<>(entries.values()));
+            SealedPackIndex index = SealedPackIndex.open(sealedIndex);
+
+            treeLock.writeLock().lock();
+            try {
+                // the open pack file stays valid after renaming it
+                if (!activePackFile().renameTo(sealedPackFile(dir, name, id)))
+                    throw new IOException("Failed to seal pack " + id);
+                List<SealedPack> packs = new ArrayList<>(sealedPacks.size() + 1);
+                packs.add(new SealedPack(id, packFile, index));
+                packs.addAll(sealedPacks);
+                sealedPacks = packs;
+                nextSealedPackId = id + 1;
+
+                packFile = openPackFile(activePackFile(), "rw");
+                createActivePack(chunkIndex.getType());
+            } finally {
+                treeLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Compacts the index of the active pack, see ChunkIndex.compact(). Readers and writers wait till the compaction is
+     * done.
+     *
+     * @return the number of bytes the index shrank
+     */
+    public long compactIndex() throws IOException {
+        synchronized (writeLock) {
+            treeLock.writeLock().lock();
+            try {
+                return chunkIndex.compact();
+            } finally {
+                treeLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of sealed packs
+     */
+    public int getSealedPackCount() {
+        treeLock.readLock().lock();
+        try {
+            return sealedPacks.size();
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a compaction of the sealed packs.
+     *
+     * The live chunks must be collected after the compaction has been started, e.g. using a ReachableChunkCollector.
+     */
+    public Compaction startCompaction() throws IOException {
+        synchronized (writeLock) {
+            // The referenced chunks of a committed transaction are released when committing; they are only live once
+            // the new head has been published.
+            while (nPublishing > 0) {
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a commit to be published");
+                }
+            }
+            if (currentCompaction != null)
+                throw new IOException("Compaction already running");
+            Set<HashValue> protectedSet = Collections.newSetFromMap(new ConcurrentHashMap<HashValue, Boolean>());
+            protectedSet.addAll(referencedChunks);
+            protectedChunks = protectedSet;
+            currentCompaction = new Compaction(new ArrayList<>(sealedPacks), protectedSet);
+            return currentCompaction;
+        }
+    }
+
+    /**
+     * Rewrites sealed packs that mostly contain unreachable chunks and drops packs without live chunks.
+     *
+     * Only packs that have been sealed before the compaction started are compacted. Chunks that are put again or
+     * checked by a transaction during the compaction (or by the pending transaction) are kept even if they are not in
+     * the live set. The live chunks are copied without holding a lock; readers are only blocked while a rewritten pack
+     * replaces the old one.
+     */
+    public class Compaction {
+        final private List<SealedPack> candidates;
+        final private Set<HashValue> protectedSet;
+        private boolean finished = false;
+
+        private Compaction(List<SealedPack> candidates, Set<HashValue> protectedSet) {
+            this.candidates = candidates;
+            this.protectedSet = protectedSet;
+        }
+
+        /**
+         * @param liveChunks all chunks that are reachable, e.g. from the heads of all branches
+         * @return the number of bytes that have been reclaimed
+         */
+        public long compact(Set<HashValue> liveChunks) throws IOException {
+            if (finished)
+                throw new IOException("Compaction already finished");
+            try {
+                long reclaimed = 0;
+                for (SealedPack sealedPack : candidates)
+                    reclaimed += compact(sealedPack, liveChunks);
+                return reclaimed;
+            } finally {
+                finish();
+            }
+        }
+
+        /**
+         * Ends the compaction without compacting, e.g. when collecting the live chunks failed.
+         */
+        public void finish() {
+            synchronized (writeLock) {
+                finished = true;
+                if (currentCompaction != this)
+                    return;
+                currentCompaction = null;
+                protectedChunks = null;
+            }
+        }
+
+        private boolean isLive(HashValue hash, Set<HashValue> liveChunks) {
+            return liveChunks.contains(hash) || protectedSet.contains(hash);
+        }
+
+        private long compact(SealedPack sealedPack, Set<HashValue> liveChunks) throws IOException {
+            SealedPackIndex index = sealedPack.index;
+            int nLive = 0;
+            for (int i = 0; i < index.size(); i++) {
+                if (isLive(index.getHash(i), liveChunks))
+                    nLive++;
+            }
+            if (index.size() - nLive < settings.compactionMinDeadRatio * index.size())
+                return 0;
+
+            int id;
+            synchronized (writeLock) {
+                id = nextSealedPackId;
+                nextSealedPackId++;
+            }
+            File newPackFile = sealedPackFile(dir, name, id);
+            File newIndexFile = sealedIndexFile(dir, name, id);
+            PackFile newPack = openPackFile(newPackFile, "rw");
+            long oldSize = sealedPack.packFile.length();
+            long newSize;
+            boolean swapped = false;
+            try {
+                newPack.create(hashSize());
+                // sorted in unsigned hash order
+                TreeMap<HashValue, Long> entries = new TreeMap<>();
+                long startTime = System.nanoTime();
+                long copiedBytes = 0;
+                for (int i = 0; i < index.size(); i++) {
+                    HashValue hash = index.getHash(i);
+                    if (!isLive(hash, liveChunks))
+                        continue;
+                    byte[] data = sealedPack.packFile.get(index.getPosition(i), hash.getBytes());
+                    entries.put(hash, newPack.put(hash, data));
+                    copiedBytes += data.length;
+                    throttle(copiedBytes, startTime);
+                }
+
+                // Writers are blocked from here on but readers may still protect chunks; readers are only blocked
+                // while swapping the packs.
+                synchronized (writeLock) {
+                    while (true) {
+                        copyProtected(sealedPack, newPack, entries);
+                        if (!entries.isEmpty()) {
+                            newPack.sync();
+                            SealedPackIndex.write(newIndexFile, hashSize(), new ArrayList<>(entries.keySet()),
+                                    new ArrayList<>(entries.values()));
+                        }
+                        treeLock.writeLock().lock();
+                        try {
+                            if (hasUncopiedProtected(sealedPack, entries))
+                                continue;
+                            List<SealedPack> packs = new ArrayList<>(sealedPacks);
+                            int packIndex = packs.indexOf(sealedPack);
+                            if (entries.isEmpty()) {
+                                packs.remove(packIndex);
+                                newSize = 0;
+                            } else {
+                                packs.set(packIndex, new SealedPack(id, newPack, SealedPackIndex.open(newIndexFile)));
+                                newSize = newPack.length();
+                            }
+                            sealedPacks = packs;
+                            swapped = entries.size() > 0;
+                            break;
+                        } finally {
+                            treeLock.writeLock().unlock();
+                        }
+                    }
+                }
+            } finally {
+                if (!swapped) {
+                    newPack.close();
+                    newIndexFile.delete();
+                    newPackFile.delete();
+                }
+            }
+
+            // Readers that located a chunk in the old pack still hold a reference to the open file, i.e. we can delete
+            // it. The index goes first so that there is never an index without its pack. The file is closed, and its
+            // space freed, once the last reader released the pack.
+            sealedIndexFile(dir, name, sealedPack.id).delete();
+            sealedPackFile(dir, name, sealedPack.id).delete();
+            sealedPack.release();
+            return oldSize - newSize;
+        }
+
+        /**
+         * Copies chunks that have been protected while copying the live chunks.
+         */
+        private void copyProtected(SealedPack sealedPack, PackFile newPack, TreeMap<HashValue, Long> entries)
+                throws IOException {
+            SealedPackIndex index = sealedPack.index;
+            for (int i = 0; i < index.size(); i++) {
+                HashValue hash = index.getHash(i);
+                if (!protectedSet.contains(hash) || entries.containsKey(hash))
+                    continue;
+                entries.put(hash, newPack.put(hash, sealedPack.packFile.get(index.getPosition(i), hash.getBytes())));
+            }
+        }
+
+        private boolean hasUncopiedProtected(SealedPack sealedPack, TreeMap<HashValue, Long> entries) {
+            for (HashValue hash : protectedSet) {
+                if (!entries.containsKey(hash) && sealedPack.index.get(hash.getBytes()) != null)
+                    return true;
+            }
+            return false;
+        }
+
+        private void throttle(long copiedBytes, long startTime) throws IOException {
+            if (settings.compactionBytesPerSecond <= 0)
+                return;
+            long expectedMillis = copiedBytes * 1000 / settings.compactionBytesPerSecond;
+            long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+            if (expectedMillis <= elapsedMillis)
+                return;
+            try {
+                Thread.sleep(expectedMillis - elapsedMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Compaction interrupted");
+            }
+        }
+    }
+
+    /**
+     * Applies all committed transactions from the write ahead log that may not have made it into the pack file and
+     * discards incomplete transactions.
+     */
+    private void recover() throws IOException {
+        PackApplier applier = new PackApplier(true);
+        writeAheadLog.recover(applier);
+        // the index doesn't replace existing entries so the entries of the lost chunks have to be rebuilt
+        if (applier.hasLostChunks())
+            rebuildActiveIndex();
+        applier.updateIndex();
+        checkpoint();
+    }
+
+    /**
+     * Appends chunks to the pack file and collects their positions so that the index can be updated in one batch.
+     */
+    private class PackApplier implements WriteAheadLog.IApplier {
+        final private List<HashValue> hashes = new ArrayList<>();
+        final private List<Long> positions = new ArrayList<>();
+        final private Set<HashValue> applied = new HashSet<>();
+        // chunks that are already in the index, e.g. when recovering after the index has been written
+        final private List<HashValue> indexed = new ArrayList<>();
+        // true when recovering, i.e. the index may point at pack records that never made it to the disk
+        final private boolean verifyIndexed;
+        private boolean lostChunks = false;
+
+        public PackApplier(boolean verifyIndexed) {
+            this.verifyIndexed = verifyIndexed;
+        }
+
+        @Override
+        public void apply(HashValue hash, byte[] data) throws IOException {
+            if (applied.contains(hash))
+                return;
+            // when recovering the chunk may already be in the pack
+            ChunkLocation location = findChunk(hash.getBytes());
+            if (location != null && (!verifyIndexed || isIntact(location, hash))) {
+                applied.add(hash);
+                indexed.add(hash);
+                return;
+            }
+            if (location != null)
+                lostChunks = true;
+            applied.add(hash);
+            hashes.add(hash);
+            positions.add(packFile.put(hash, data));
+        }
+
+        /**
+         * @return true if the index pointed at chunks that have been lost from the pack and that have been appended
+         * again
+         */
+        public boolean hasLostChunks() {
+            return lostChunks;
+        }
+
+        /**
+         * The pack is not synced before the index is updated, i.e. after a crash the index may be ahead of the pack.
+         * Sealed packs are synced before they are sealed.
+         */
+        private boolean isIntact(ChunkLocation location, HashValue hash) {
+            if (location.sealedPack != null)
+                return true;
+            try {
+                byte[] data = location.packFile.get(location.position, hash.getBytes());
+                return hash.equals(new HashValue(CryptoHelper.sha256Hash(data)));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        public void updateIndex() throws IOException {
+            treeLock.writeLock().lock();
+            try {
+                chunkIndex.putAll(hashes, positions);
+                if (bloomFilter != null) {
+                    for (HashValue hash : hashes)
+                        bloomFilter.add(hash);
+                    // the bloom filter may be older than the index
+                    for (HashValue hash : indexed)
+                        bloomFilter.add(hash);
+                }
+                pendingChunks.clear();
+            } finally {
+                treeLock.writeLock().unlock();
+            }
+        }
+    }
+
     public byte[] getChunk(HashValue hash) throws IOException {
         return getChunk(hash.getBytes());
     }
 
+    /**
+     * The returned data may be shared with other readers through the chunk cache and must not be modified.
+     */
     public byte[] getChunk(byte[] hash) throws IOException {
-        Long position = tree.get(hash);
-        if (position == null)
+        HashValue hashValue = new HashValue(hash);
+        if (chunkCache != null) {
+            byte[] cached = chunkCache.get(hashValue);
+            if (cached != null)
+                return cached;
+        }
+        ChunkLocation location;
+        treeLock.readLock().lock();
+        try {
+            if (!pendingChunks.isEmpty()) {
+                Long logPosition = pendingChunks.get(hashValue);
+                if (logPosition != null)
+                    return writeAheadLog.read(logPosition, hash);
+            }
+            location = locateChunk(hash);
+            // a compaction may replace the sealed pack while we read from it
+            if (location != null && location.sealedPack != null)
+                location.sealedPack.acquire();
+        } finally {
+            treeLock.readLock().unlock();
+        }
+        if (location == null)
             return null;
-        return packFile.get(position.intValue(), hash);
+        byte[] data;
+        try {
+            data = location.packFile.get(location.position, hash);
+        } finally {
+            if (location.sealedPack != null)
+                location.sealedPack.release();
+        }
+        if (chunkCache != null)
+            chunkCache.put(hashValue, data);
+        return data;
     }
 
     public boolean hasChunk(HashValue hashValue) throws IOException {
-        return tree.get(hashValue.getBytes()) != null;
+        return hasChunk(hashValue, false);
+    }
+
+    /**
+     * @param reference true if the caller may reference the chunk
+     */
+    private boolean hasChunk(HashValue hashValue, boolean reference) throws IOException {
+        treeLock.readLock().lock();
+        try {
+            if (pendingChunks.containsKey(hashValue))
+                return true;
+            if (locateChunk(hashValue.getBytes()) == null)
+                return false;
+            // mark it while holding the lock so that a compaction can't remove it in between
+            if (reference)
+                markReferenced(hashValue);
+            return true;
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    private void markReferenced(HashValue hash) {
+        referencedChunks.add(hash);
+        Set<HashValue> protectedSet = protectedChunks;
+        if (protectedSet != null)
+            protectedSet.add(hash);
+    }
+
+    /**
+     * Looks up the pack and the position of a committed chunk; the bloom filter is checked first if available.
+     */
+    private ChunkLocation locateChunk(byte[] hash) throws IOException {
+        if (bloomFilter == null)
+            return findChunk(hash);
+        if (!bloomFilter.mightContain(hash))
+            return null;
+        ChunkLocation location = findChunk(hash);
+        if (location == null)
+            bloomFilter.reportFalsePositive();
+        return location;
+    }
+
+    /**
+     * Searches the index of the active pack and then the indices of the sealed packs.
+     */
+    private ChunkLocation findChunk(byte[] hash) throws IOException {
+        Long position = chunkIndex.get(hash);
+        if (position != null)
+            return new ChunkLocation(packFile, position);
+        for (SealedPack sealedPack : sealedPacks) {
+            position = sealedPack.index.get(hash);
+            if (position != null)
+                return new ChunkLocation(sealedPack, position);
+        }
+        return null;
     }
 
     public Transaction openTransaction() throws IOException {
@@ -85,18 +988,90 @@ public class ChunkStore {
     }
 
     private PutResult<HashValue> put(byte[] data) throws IOException {
-        HashValue hash = new HashValue(CryptoHelper.sha256Hash(data));
-        // TODO make it more efficient by only using one lookup
-        if (tree.get(hash.getBytes()) != null)
-            return new PutResult<>(hash, true);
-        long position = packFile.put(hash, data);
-        boolean wasInDatabase = !tree.put(hash, position);
-        PutResult<HashValue> putResult = new PutResult<>(hash, wasInDatabase);
-        return putResult;
+        return put(new HashValue(CryptoHelper.sha256Hash(data)), data);
+    }
+
+    /**
+     * @param hash the sha256 hash of the data
+     */
+    PutResult<HashValue> put(HashValue hash, byte[] data) throws IOException {
+        synchronized (writeLock) {
+            // we are the only writer so we can read the index without the tree lock
+            if (pendingChunks.containsKey(hash))
+                return new PutResult<>(hash, true);
+            if (locateChunk(hash.getBytes()) != null) {
+                markReferenced(hash);
+                return new PutResult<>(hash, true);
+            }
+            pendingChunks.put(hash, writeAheadLog.append(hash, data));
+            return new PutResult<>(hash, false);
+        }
+    }
+
+    /**
+     * @param hashes the sha256 hashes of the chunks
+     */
+    List<PutResult<HashValue>> putAll(List<HashValue> hashes, List<byte[]> chunks) throws IOException {
+        List<PutResult<HashValue>> results = new ArrayList<>(chunks.size());
+        synchronized (writeLock) {
+            for (int i = 0; i < chunks.size(); i++)
+                results.add(put(hashes.get(i), chunks.get(i)));
+        }
+        return results;
+    }
+
+    void beginPublishing() {
+        synchronized (writeLock) {
+            nPublishing++;
+        }
+    }
+
+    void endPublishing() {
+        synchronized (writeLock) {
+            nPublishing--;
+            if (nPublishing == 0)
+                writeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Syncs the write ahead log once and then moves all pending chunks into the pack file and the index.
+     */
+    private void commit() throws IOException {
+        synchronized (writeLock) {
+            if (pendingChunks.isEmpty())
+                return;
+            PackApplier applier = new PackApplier(false);
+            writeAheadLog.commit(applier);
+            applier.updateIndex();
+            referencedChunks.clear();
+
+            if (writeAheadLog.length() >= walCheckpointSize)
+                checkpoint();
+            if (settings.sealPackSize > 0 && packFile.length() >= settings.sealPackSize)
+                sealPack();
+        }
+    }
+
+    /**
+     * Syncs the pack, the index and the bloom filter so that the committed transactions in the write ahead log can be
+     * dropped.
+     */
+    private void checkpoint() throws IOException {
+        packFile.sync();
+        chunkIndex.sync();
+        // the filter is only modified by the writer so we don't need the tree lock here
+        if (bloomFilter != null)
+            bloomFilter.write(bloomFilterFile);
+        treeLock.writeLock().lock();
+        try {
+            writeAheadLog.reset();
+        } finally {
+            treeLock.writeLock().unlock();
+        }
     }
 
     static private int hashSize() {
         return 32;
     }
-
 }
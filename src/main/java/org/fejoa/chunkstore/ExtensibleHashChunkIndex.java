@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Chunk index backed by an ExtensibleHashMap.
+ *
+ * A lookup reads one directory entry and one bucket, independent of the number of chunks. The chunk hashes are
+ * uniformly distributed so the buckets fill evenly. The index doesn't support ordered access.
+ */
+public class ExtensibleHashChunkIndex implements ChunkIndex {
+    // a bucket of 32 byte hashes and long positions fits into a 4 KiB page
+    final static public short BUCKET_CAPACITY = 100;
+    // the map starts after the index type
+    final static private int MAP_OFFSET = 2;
+
+    final private ExtensibleHashMap hashMap;
+
+    private ExtensibleHashChunkIndex(ExtensibleHashMap hashMap) {
+        this.hashMap = hashMap;
+    }
+
+    static public ExtensibleHashChunkIndex create(RandomAccessFile file, int hashSize) throws IOException {
+        file.setLength(0);
+        file.seek(0);
+        file.writeShort(Type.EXTENSIBLE_HASH.getId());
+        ExtensibleHashMap hashMap = new ExtensibleHashMap();
+        hashMap.create(file, MAP_OFFSET, (short)hashSize, BUCKET_CAPACITY);
+        return new ExtensibleHashChunkIndex(hashMap);
+    }
+
+    static public ExtensibleHashChunkIndex open(RandomAccessFile file) throws IOException {
+        if (ChunkIndex.Type.read(file) != Type.EXTENSIBLE_HASH)
+            throw new IOException("Not an extensible hash index");
+        ExtensibleHashMap hashMap = new ExtensibleHashMap();
+        hashMap.open(file, MAP_OFFSET);
+        return new ExtensibleHashChunkIndex(hashMap);
+    }
+
+    @Override
+    public Type getType() {
+        return Type.EXTENSIBLE_HASH;
+    }
+
+    @Override
+    public Long get(byte[] hash) throws IOException {
+        return hashMap.get(hash);
+    }
+
+    @Override
+    public void putAll(List<HashValue> hashes, List<Long> positions) throws IOException {
+        List<byte[]> keys = new ArrayList<>(hashes.size());
+        for (HashValue hash : hashes)
+            keys.add(hash.getBytes());
+        hashMap.putAll(keys, positions);
+    }
+
+    @Override
+    public void visitEntries(BaseBPlusTree.IEntryVisitor<Long> visitor) throws IOException {
+        hashMap.visitEntries(visitor);
+    }
+
+    /**
+     * Buckets are rewritten in place and a split moves entries to new buckets.
+     */
+    @Override
+    public boolean updatesInPlace() {
+        return true;
+    }
+
+    /**
+     * Chunks are never removed from the index, i.e. there is nothing to compact.
+     */
+    @Override
+    public long compact() throws IOException {
+        return 0;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        hashMap.sync();
+    }
+}
@@ -8,8 +8,8 @@
 package org.fejoa.chunkstore;
 
 
-public class ExtensibleHashMap extends AbstractExtensibleHashMap<Integer, Long> {
+public class ExtensibleHashMap extends AbstractExtensibleHashMap<Long> {
     public ExtensibleHashMap() {
-        super(new IntegerType(), new LongType());
+        super(new LongType());
     }
 }
@@ -29,6 +29,17 @@ public class FixedBlockSplitter extends ChunkSplitter {
         return false;
     }
 
+    @Override
+    protected int findBoundaryInternal(byte[] buf, int offset, int length) {
+        int missing = Math.max(1, blockSize - nBytesInBlock);
+        if (length < missing) {
+            nBytesInBlock += length;
+            return -1;
+        }
+        nBytesInBlock += missing;
+        return offset + missing;
+    }
+
     @Override
     public void resetInternal() {
         nBytesInBlock = 0;
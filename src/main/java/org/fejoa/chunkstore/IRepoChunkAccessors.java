@@ -30,6 +30,12 @@ public interface IRepoChunkAccessors {
         IChunkAccessor getFileAccessor(String filePath);
 
         void finishTransaction() throws IOException;
+
+        /**
+         * Finishes the transaction and publishes it, e.g. adds the new head to the branch log, before a compaction
+         * can collect the live chunks.
+         */
+        void finishTransaction(ChunkStore.ICommitPublisher publisher) throws IOException;
     }
 
     ITransaction startTransaction() throws IOException;
@@ -49,6 +49,11 @@ public class LogRepoTransaction implements IRepoChunkAccessors.ITransaction {
         childTransaction.finishTransaction();
     }
 
+    @Override
+    public void finishTransaction(ChunkStore.ICommitPublisher publisher) throws IOException {
+        childTransaction.finishTransaction(publisher);
+    }
+
     private IChunkAccessor createWrapper(final IChunkAccessor chunkAccessor) {
         return new IChunkAccessor() {
             @Override
@@ -7,22 +7,123 @@
  */
 package org.fejoa.chunkstore;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
+/**
+ * Append only file of chunks.
+ *
+ * Disk structure:
+ * ------------------
+ * Header: version (short) | hash size (short)
+ * ------------------
+ * chunk records
+ * ------------------
+ *
+ * Version 1 record: hash | data length (int) | data
+ * Version 2 record: hash | flags (byte) | data length (int) | data
+ *
+ * In version 2 records with the FLAG_DEFLATED flag the data is: uncompressed length (int) | deflated data. The hash is
+ * always the hash of the uncompressed data.
+ */
 public class PackFile {
-    private short version = 1;
+    /**
+     * How chunks are read from the pack file.
+     *
+     * SEEK: seek and read through the shared file handle. Reads are serialized with writes.
+     * MAPPED: map the pack in segments and copy chunks out of the mapping. Segments are remapped when the file grew.
+     * POSITIONAL: positional reads on the file channel. Does not depend on the file position.
+     *
+     * MAPPED and POSITIONAL reads don't lock, i.e. any number of readers can read while a single writer appends.
+     */
+    public enum ReadMode {
+        SEEK,
+        MAPPED,
+        POSITIONAL
+    }
+
+    public interface IRecordVisitor {
+        void visit(HashValue hash, long position) throws IOException;
+    }
+
+    final static public int DEFAULT_MAPPED_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // compression is disabled
+    final static public int NO_COMPRESSION = -2;
+
+    final static private short CURRENT_VERSION = 2;
+    final static private byte FLAG_DEFLATED = 1;
+    final static private int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private short version = CURRENT_VERSION;
     private short hashSize;
     final private RandomAccessFile file;
+    final private ReadMode readMode;
+    final private int mappedSegmentSize;
+    // only used in MAPPED mode; all segments but the last one have the size mappedSegmentSize
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long mappedLength = 0;
+    // Deflater level or NO_COMPRESSION
+    private int compressionLevel = NO_COMPRESSION;
+    // only used by the writer
+    private Deflater deflater;
 
     public PackFile(RandomAccessFile file) {
+        this(file, ReadMode.SEEK);
+    }
+
+    public PackFile(RandomAccessFile file, ReadMode readMode) {
+        this(file, readMode, DEFAULT_MAPPED_SEGMENT_SIZE);
+    }
+
+    public PackFile(RandomAccessFile file, ReadMode readMode, int mappedSegmentSize) {
         this.file = file;
+        this.readMode = readMode;
+        this.mappedSegmentSize = mappedSegmentSize;
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * Sets the compression level for new chunks. Chunks are only stored compressed if it makes them smaller.
+     *
+     * Compression is not supported in version 1 packs.
+     *
+     * @param compressionLevel a Deflater level or NO_COMPRESSION
+     */
+    synchronized public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public short getVersion() {
+        return version;
+    }
+
+    public short getHashSize() {
+        return hashSize;
     }
 
     public void create(int hashSize) throws IOException {
         this.hashSize = (short)hashSize;
+        this.version = CURRENT_VERSION;
 
         file.setLength(0);
         writeHeader();
@@ -35,6 +136,8 @@ public class PackFile {
     private void readHeader() throws IOException {
         file.seek(0);
         version = file.readShort();
+        if (version < 1 || version > CURRENT_VERSION)
+            throw new IOException("Unsupported pack version: " + version);
         hashSize = file.readShort();
     }
 
@@ -45,28 +148,289 @@ public class PackFile {
     }
 
     private long headerSize() {
-        return 2 * 4;
+        // version + hash size
+        return 2 + 2;
     }
 
-    public long put(HashValue hash, byte[] data) throws IOException {
+    /**
+     * @return the size of a record without the data
+     */
+    private int recordHeaderSize() {
+        if (version == 1)
+            return hashSize + 4;
+        return hashSize + 1 + 4;
+    }
+
+    synchronized public long put(HashValue hash, byte[] data) throws IOException {
+        byte flags = 0;
+        int length = data.length;
+        if (version > 1 && compressionLevel != NO_COMPRESSION) {
+            byte[] compressed = compress(data);
+            if (compressed != null) {
+                flags |= FLAG_DEFLATED;
+                data = compressed;
+                length = compressed.length;
+            }
+        }
+
         long position = file.length();
         file.seek(position);
         file.write(hash.getBytes());
-        file.writeInt(data.length);
+        if (version > 1)
+            file.writeByte(flags);
+        file.writeInt(length);
         file.write(data);
         return position;
     }
 
-    public byte[] get(int position, byte[] expectedHash) throws IOException {
+    /**
+     * @return the uncompressed length followed by the deflated data or null if compression doesn't make the data smaller
+     */
+    private byte[] compress(byte[] data) {
+        if (data.length <= 4)
+            return null;
+        if (deflater == null)
+            deflater = new Deflater(compressionLevel);
+        else
+            deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        // no gain if the compressed data is not smaller than the raw data
+        byte[] buffer = new byte[data.length];
+        ByteBuffer.wrap(buffer).putInt(data.length);
+        int length = 4;
+        while (!deflater.finished()) {
+            if (length == buffer.length)
+                return null;
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private byte[] decode(long position, byte flags, byte[] data) throws IOException {
+        if ((flags & FLAG_DEFLATED) == 0)
+            return data;
+
+        int rawLength = ByteBuffer.wrap(data).getInt();
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 4, data.length - 4);
+            int length = 0;
+            while (length < rawLength) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += inflated;
+            }
+            if (length != rawLength)
+                throw new IOException("Invalid compressed chunk at position " + position);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed chunk at position " + position, e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public long length() throws IOException {
+        return file.length();
+    }
+
+    /**
+     * Flushes all written chunks to the disk.
+     */
+    public void sync() throws IOException {
+        file.getChannel().force(false);
+    }
+
+    /**
+     * Visits the hash and the position of all records in file order, e.g. to rebuild the index of the pack.
+     *
+     * Only the record headers are read; the chunk data is skipped. An incomplete record at the end of the file, e.g.
+     * after a crash while appending, is ignored.
+     *
+     * @return the end of the last complete record
+     */
+    public long visitRecords(IRecordVisitor visitor) throws IOException {
+        long end = file.length();
+        int recordHeaderSize = recordHeaderSize();
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        // file position of the buffer content
+        long bufferStart = 0;
+        int bufferLength = 0;
+        long position = headerSize();
+        while (position + recordHeaderSize <= end) {
+            if (position < bufferStart || position + recordHeaderSize > bufferStart + bufferLength) {
+                buffer.clear();
+                buffer.limit((int)Math.min(SCAN_BUFFER_SIZE, end - position));
+                readAt(position, buffer);
+                bufferStart = position;
+                bufferLength = buffer.limit();
+            }
+            buffer.position((int)(position - bufferStart));
+            byte[] hash = new byte[hashSize];
+            buffer.get(hash);
+            if (version > 1)
+                buffer.get();
+            int length = buffer.getInt();
+            if (length < 0)
+                throw new IOException("Invalid chunk length at position " + position);
+            long next = position + recordHeaderSize + length;
+            if (next > end)
+                break;
+            visitor.visit(new HashValue(hash), position);
+            position = next;
+        }
+        return position;
+    }
+
+    /**
+     * Cuts off an incomplete record at the end of the file, e.g. after a crash while appending, so that new records
+     * directly follow the last complete record.
+     *
+     * @return the new length of the file
+     */
+    public long truncateIncompleteRecord() throws IOException {
+        long end = visitRecords(new IRecordVisitor() {
+            @Override
+            public void visit(HashValue hash, long position) {
+
+            }
+        });
+        if (end < file.length())
+            file.setLength(end);
+        return end;
+    }
+
+    public byte[] get(long position, byte[] expectedHash) throws IOException {
+        switch (readMode) {
+            case MAPPED:
+                return getMapped(position, expectedHash);
+            case POSITIONAL:
+                return getPositional(position, expectedHash);
+            default:
+                return getSeek(position, expectedHash);
+        }
+    }
+
+    synchronized private byte[] getSeek(long position, byte[] expectedHash) throws IOException {
         file.seek(position);
         byte[] hash = new byte[hashSize];
         file.readFully(hash);
         if (expectedHash != null && !Arrays.equals(expectedHash, hash))
             throw new IOException("Unexpected chunk at position " + position);
 
+        byte flags = version > 1 ? file.readByte() : 0;
         int length = file.readInt();
         byte[] data = new byte[length];
         file.readFully(data);
-        return data;
+        return decode(position, flags, data);
+    }
+
+    private byte[] getPositional(long position, byte[] expectedHash) throws IOException {
+        // read hash, flags and length in one go
+        ByteBuffer recordHeader = ByteBuffer.allocate(recordHeaderSize());
+        readAt(position, recordHeader);
+        recordHeader.flip();
+        byte[] hash = new byte[hashSize];
+        recordHeader.get(hash);
+        if (expectedHash != null && !Arrays.equals(expectedHash, hash))
+            throw new IOException("Unexpected chunk at position " + position);
+
+        byte flags = version > 1 ? recordHeader.get() : 0;
+        int length = recordHeader.getInt();
+        byte[] data = new byte[length];
+        readAt(position + recordHeaderSize(), ByteBuffer.wrap(data));
+        return decode(position, flags, data);
+    }
+
+    private void readAt(long position, ByteBuffer buffer) throws IOException {
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Read beyond the end of the pack file: " + position);
+            position += read;
+        }
+    }
+
+    private byte[] getMapped(long position, byte[] expectedHash) throws IOException {
+        long dataPosition = position + recordHeaderSize();
+        ensureMapped(dataPosition);
+
+        MappedByteBuffer[] segments = this.segments;
+        byte[] recordHeaderBytes = new byte[recordHeaderSize()];
+        readMapped(segments, position, recordHeaderBytes, 0, recordHeaderBytes.length);
+        ByteBuffer recordHeader = ByteBuffer.wrap(recordHeaderBytes);
+        byte[] hash = new byte[hashSize];
+        recordHeader.get(hash);
+        if (expectedHash != null && !Arrays.equals(expectedHash, hash))
+            throw new IOException("Unexpected chunk at position " + position);
+
+        byte flags = version > 1 ? recordHeader.get() : 0;
+        int length = recordHeader.getInt();
+
+        if (ensureMapped(dataPosition + length))
+            segments = this.segments;
+        byte[] data = new byte[length];
+        readMapped(segments, dataPosition, data, 0, length);
+        return decode(position, flags, data);
+    }
+
+    /**
+     * Makes sure that the file is mapped up to the position end.
+     *
+     * Full segments never change so only the last (partial) segment and the new segments are (re)mapped.
+     *
+     * @return true if the segments have been remapped
+     */
+    private boolean ensureMapped(long end) throws IOException {
+        if (end <= mappedLength)
+            return false;
+        synchronized (this) {
+            return remap(end);
+        }
+    }
+
+    private boolean remap(long end) throws IOException {
+        if (end <= mappedLength)
+            return false;
+
+        FileChannel channel = file.getChannel();
+        long fileLength = channel.size();
+        if (end > fileLength)
+            throw new IOException("Read beyond the end of the pack file: " + end + " (Length: " + fileLength + ")");
+
+        int nSegments = (int)((fileLength + mappedSegmentSize - 1) / mappedSegmentSize);
+        MappedByteBuffer[] remapped = Arrays.copyOf(segments, nSegments);
+        for (int i = (int)(mappedLength / mappedSegmentSize); i < nSegments; i++) {
+            long start = (long)i * mappedSegmentSize;
+            remapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(mappedSegmentSize, fileLength - start));
+        }
+        segments = remapped;
+        mappedLength = fileLength;
+        return true;
+    }
+
+    private void readMapped(MappedByteBuffer[] segments, long position, byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            // duplicate so that we don't touch the position of the shared segment
+            ByteBuffer segment = segments[(int)(position / mappedSegmentSize)].duplicate();
+            int inSegmentPosition = (int)(position % mappedSegmentSize);
+            int chunkLength = Math.min(length, segment.limit() - inSegmentPosition);
+            segment.position(inSegmentPosition);
+            segment.get(buffer, offset, chunkLength);
+
+            position += chunkLength;
+            offset += chunkLength;
+            length -= chunkLength;
+        }
     }
 }
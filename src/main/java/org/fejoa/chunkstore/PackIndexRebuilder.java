@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Rebuilds the index of a pack file in one pass over the pack, e.g. when the index has been lost or to rewrite an index
+ * with a better fill.
+ *
+ * The hash and position of all records are read sequentially and sorted externally: sorted runs of at most
+ * maxEntriesInMemory entries are written to temporary files and merged. The sorted entries are then bulk loaded into
+ * an empty tree, i.e. each tile is only written once.
+ *
+ * If a chunk is more than once in the pack the first record is indexed.
+ *
+ * Run file: (hash | position (long)) x number of entries
+ */
+public class PackIndexRebuilder {
+    final static public int DEFAULT_MAX_ENTRIES_IN_MEMORY = 256 * 1024;
+
+    final private File tempDir;
+    final private int maxEntriesInMemory;
+
+    /**
+     * @param tempDir directory for the sorted runs
+     */
+    public PackIndexRebuilder(File tempDir) {
+        this(tempDir, DEFAULT_MAX_ENTRIES_IN_MEMORY);
+    }
+
+    public PackIndexRebuilder(File tempDir, int maxEntriesInMemory) {
+        this.tempDir = tempDir;
+        this.maxEntriesInMemory = Math.max(1, maxEntriesInMemory);
+    }
+
+    final static private Comparator<BaseBPlusTree.Entry<Long>> ENTRY_COMPARATOR
+            = new Comparator<BaseBPlusTree.Entry<Long>>() {
+        @Override
+        public int compare(BaseBPlusTree.Entry<Long> a, BaseBPlusTree.Entry<Long> b) {
+            return BaseBPlusTree.compareKeys(a.getKey(), b.getKey());
+        }
+    };
+
+    /**
+     * @param packFile an opened pack file
+     * @param tree a newly created tree
+     * @return the number of indexed chunks
+     */
+    public long rebuild(PackFile packFile, BPlusTree tree, double fillFactor) throws IOException {
+        final List<BaseBPlusTree.Entry<Long>> entries = new ArrayList<>();
+        final List<File> runs = new ArrayList<>();
+        final int hashSize = packFile.getHashSize();
+        try {
+            packFile.visitRecords(new PackFile.IRecordVisitor() {
+                @Override
+                public void visit(HashValue hash, long position) throws IOException {
+                    entries.add(new BaseBPlusTree.Entry<>(hash.getBytes(), position));
+                    if (entries.size() < maxEntriesInMemory)
+                        return;
+                    runs.add(writeRun(entries));
+                    entries.clear();
+                }
+            });
+
+            if (runs.isEmpty()) {
+                // everything fits into memory
+                Collections.sort(entries, ENTRY_COMPARATOR);
+                removeDuplicates(entries);
+                final Iterator<BaseBPlusTree.Entry<Long>> iterator = entries.iterator();
+                tree.bulkLoad(entries.size(), new BaseBPlusTree.ISortedEntrySource<Long>() {
+                    @Override
+                    public BaseBPlusTree.Entry<Long> next() {
+                        return iterator.hasNext() ? iterator.next() : null;
+                    }
+                }, fillFactor);
+                return entries.size();
+            }
+
+            if (!entries.isEmpty())
+                runs.add(writeRun(entries));
+            entries.clear();
+            // merge the runs into a single run without duplicates so that we know the number of entries
+            File merged = createRunFile();
+            runs.add(merged);
+            long nEntries = merge(runs.subList(0, runs.size() - 1), merged, hashSize);
+            final RunReader reader = new RunReader(merged, 0, hashSize);
+            try {
+                tree.bulkLoad(nEntries, new BaseBPlusTree.ISortedEntrySource<Long>() {
+                    @Override
+                    public BaseBPlusTree.Entry<Long> next() throws IOException {
+                        return reader.next();
+                    }
+                }, fillFactor);
+            } finally {
+                reader.close();
+            }
+            return nEntries;
+        } finally {
+            for (File run : runs)
+                run.delete();
+        }
+    }
+
+    /**
+     * Removes consecutive entries with the same key; the first one is kept.
+     */
+    static private void removeDuplicates(List<BaseBPlusTree.Entry<Long>> sortedEntries) {
+        int unique = 0;
+        for (int i = 0; i < sortedEntries.size(); i++) {
+            if (unique > 0 && Arrays.equals(sortedEntries.get(unique - 1).getKey(), sortedEntries.get(i).getKey()))
+                continue;
+            sortedEntries.set(unique, sortedEntries.get(i));
+            unique++;
+        }
+        sortedEntries.subList(unique, sortedEntries.size()).clear();
+    }
+
+    private File createRunFile() throws IOException {
+        return File.createTempFile("packIndex", ".run", tempDir);
+    }
+
+    private File writeRun(List<BaseBPlusTree.Entry<Long>> entries) throws IOException {
+        // the sort is stable, i.e. the first record of a chunk stays first
+        Collections.sort(entries, ENTRY_COMPARATOR);
+        File run = createRunFile();
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+        try {
+            for (BaseBPlusTree.Entry<Long> entry : entries) {
+                outputStream.write(entry.getKey());
+                outputStream.writeLong(entry.getValue());
+            }
+        } finally {
+            outputStream.close();
+        }
+        return run;
+    }
+
+    /**
+     * Reads the entries of a run one by one.
+     */
+    static class RunReader {
+        // order of the run; earlier runs contain earlier records
+        final int index;
+        final DataInputStream inputStream;
+        final int hashSize;
+        final long nEntries;
+        long nRead = 0;
+        BaseBPlusTree.Entry<Long> current;
+
+        public RunReader(File run, int index, int hashSize) throws IOException {
+            this.index = index;
+            this.hashSize = hashSize;
+            this.nEntries = run.length() / (hashSize + 8);
+            this.inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+        }
+
+        /**
+         * @return the next entry or null at the end of the run
+         */
+        public BaseBPlusTree.Entry<Long> next() throws IOException {
+            if (nRead == nEntries) {
+                current = null;
+                return null;
+            }
+            byte[] hash = new byte[hashSize];
+            inputStream.readFully(hash);
+            current = new BaseBPlusTree.Entry<>(hash, inputStream.readLong());
+            nRead++;
+            return current;
+        }
+
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Merges sorted runs and removes duplicates; on equal keys the entry of the earlier run wins.
+     *
+     * @return the number of merged entries
+     */
+    private long merge(List<File> runs, File target, int hashSize) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader a, RunReader b) {
+                int comparison = BaseBPlusTree.compareKeys(a.current.getKey(), b.current.getKey());
+                if (comparison != 0)
+                    return comparison;
+                return Integer.compare(a.index, b.index);
+            }
+        });
+        List<RunReader> readers = new ArrayList<>();
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(runs.get(i), i, hashSize);
+                readers.add(reader);
+                if (reader.next() != null)
+                    queue.add(reader);
+            }
+
+            long nEntries = 0;
+            byte[] previousKey = null;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                BaseBPlusTree.Entry<Long> entry = reader.current;
+                if (previousKey == null || !Arrays.equals(previousKey, entry.getKey())) {
+                    outputStream.write(entry.getKey());
+                    outputStream.writeLong(entry.getValue());
+                    previousKey = entry.getKey();
+                    nEntries++;
+                }
+                if (reader.next() != null)
+                    queue.add(reader);
+            }
+            return nEntries;
+        } finally {
+            outputStream.close();
+            for (RunReader reader : readers)
+                reader.close();
+        }
+    }
+}
@@ -95,6 +95,31 @@ public class RabinSplitter extends ChunkSplitter {
         return false;
     }
 
+    @Override
+    protected int findBoundaryInternal(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        // bytes in front of the window are only counted
+        long unhashed = Math.max(0, minChunkSize - windowSize - 1 - chunkSize);
+        if (unhashed > 0) {
+            int skip = (int)Math.min(unhashed, end - i);
+            chunkSize += skip;
+            i += skip;
+        }
+        final long threshold = MASK / targetChunkSize;
+        for (; i < end; i++) {
+            chunkSize++;
+            window.pushByte(buf[i]);
+            if (chunkSize < minChunkSize)
+                continue;
+            if (chunkSize >= maxChunkSize)
+                return i + 1;
+            if ((window.getFingerprintLong() & MASK) < threshold)
+                return i + 1;
+        }
+        return -1;
+    }
+
     @Override
     protected void resetInternal() {
         chunkSize = 0;
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoException;
+
+import java.io.IOException;
+import java.util.*;
+
+
+/**
+ * Marks all chunks that are reachable from a set of commits, i.e. the commit, tree and file containers of the commits
+ * and of all their ancestors.
+ *
+ * Containers that have already been marked are not visited again so shared history and unchanged directories are only
+ * read once.
+ */
+public class ReachableChunkCollector {
+    final private IRepoChunkAccessors.ITransaction transaction;
+    final private Set<HashValue> reachable = new HashSet<>();
+
+    public ReachableChunkCollector(IRepoChunkAccessors.ITransaction transaction) {
+        this.transaction = transaction;
+    }
+
+    /**
+     * Marks the chunks reachable from the latest commit of the branch.
+     */
+    public void addBranch(ChunkStoreBranchLog branchLog, Repository.ICommitCallback commitCallback)
+            throws IOException, CryptoException {
+        ChunkStoreBranchLog.Entry latest = branchLog.getLatest();
+        if (latest == null)
+            return;
+        BoxPointer head = commitCallback.commitPointerFromLog(latest.getMessage());
+        if (head != null)
+            addCommit(head);
+    }
+
+    public void addCommit(BoxPointer commitPointer) throws IOException, CryptoException {
+        // walk the history iteratively; it can be much deeper than the stack
+        Deque<BoxPointer> commits = new ArrayDeque<>();
+        commits.add(commitPointer);
+        while (!commits.isEmpty()) {
+            BoxPointer pointer = commits.removeFirst();
+            ChunkContainer commitContainer = markContainer(transaction.getCommitAccessor(), pointer);
+            if (commitContainer == null)
+                continue;
+            CommitBox commitBox = CommitBox.read(commitContainer);
+            addDirectory(commitBox.getTree(), "");
+            commits.addAll(commitBox.getParents());
+        }
+    }
+
+    private void addDirectory(BoxPointer pointer, String path) throws IOException, CryptoException {
+        ChunkContainer chunkContainer = markContainer(transaction.getTreeAccessor(), pointer);
+        if (chunkContainer == null)
+            return;
+        DirectoryBox directoryBox = DirectoryBox.read(chunkContainer);
+        for (DirectoryBox.Entry entry : directoryBox.getEntries()) {
+            String entryPath = path + "/" + entry.getName();
+            if (entry.isFile())
+                markContainer(transaction.getFileAccessor(entryPath), entry.getDataPointer());
+            else
+                addDirectory(entry.getDataPointer(), entryPath);
+        }
+    }
+
+    /**
+     * Marks all chunks of a container.
+     *
+     * @return the container or null if it has already been marked
+     */
+    private ChunkContainer markContainer(IChunkAccessor accessor, BoxPointer pointer)
+            throws IOException, CryptoException {
+        if (!reachable.add(pointer.getBoxHash()))
+            return null;
+        ChunkContainer chunkContainer = ChunkContainer.read(accessor, pointer);
+        markNode(accessor, chunkContainer);
+        return chunkContainer;
+    }
+
+    private void markNode(IChunkAccessor accessor, ChunkContainerNode node) throws IOException, CryptoException {
+        for (IChunkPointer child : node.getChunkPointers()) {
+            reachable.add(child.getBoxPointer().getBoxHash());
+            if (!node.isLeafNode())
+                markNode(accessor, ChunkContainerNode.read(accessor, node, child));
+        }
+    }
+
+    public Set<HashValue> getReachableChunks() {
+        return reachable;
+    }
+}
@@ -21,4 +21,9 @@ abstract public class RepoAccessorsTransactionBase implements IRepoChunkAccessor
     public void finishTransaction() throws IOException {
         transaction.commit();
     }
+
+    @Override
+    public void finishTransaction(ChunkStore.ICommitPublisher publisher) throws IOException {
+        transaction.commit(publisher);
+    }
 }
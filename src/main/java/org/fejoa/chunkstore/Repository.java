@@ -182,9 +182,7 @@ public class Repository {
                 otherTransaction.finishTransaction();
                 headCommit = otherBranch;
 
-                transaction.finishTransaction();
-                transaction = new LogRepoTransaction(accessors.startTransaction());
-                log.add(commitCallback.commitPointerToLog(headCommit.getBoxPointer()), transaction.getObjectsWritten());
+                finishTransaction(Collections.<HashValue>emptyList());
                 treeAccessor = new TreeAccessor(DirectoryBox.read(transaction.getTreeAccessor(), otherBranch.getTree()),
                         transaction);
                 return;
@@ -204,9 +202,7 @@ public class Repository {
                 otherTransaction.finishTransaction();
                 headCommit = otherBranch;
 
-                transaction.finishTransaction();
-                transaction = new LogRepoTransaction(accessors.startTransaction());
-                log.add(commitCallback.commitPointerToLog(headCommit.getBoxPointer()), transaction.getObjectsWritten());
+                finishTransaction(Collections.<HashValue>emptyList());
                 treeAccessor = new TreeAccessor(DirectoryBox.read(transaction.getTreeAccessor(), otherBranch.getTree()),
                         transaction);
                 return;
@@ -219,6 +215,19 @@ public class Repository {
         }
     }
 
+    /**
+     * Commits the current transaction, adds the head commit to the branch log and starts a new transaction.
+     */
+    private void finishTransaction(final List<HashValue> objectsWritten) throws IOException {
+        transaction.finishTransaction(new ChunkStore.ICommitPublisher() {
+            @Override
+            public void publish() throws IOException {
+                log.add(commitCallback.commitPointerToLog(headCommit.getBoxPointer()), objectsWritten);
+            }
+        });
+        transaction = new LogRepoTransaction(accessors.startTransaction());
+    }
+
     public BoxPointer commit() throws IOException, CryptoException {
         return commit("Repo commit");
     }
@@ -243,10 +252,7 @@ public class Repository {
             commitBox.setBoxPointer(commitPointer);
             headCommit = commitBox;
 
-            transaction.finishTransaction();
-            log.add(commitCallback.commitPointerToLog(commitPointer), transaction.getObjectsWritten());
-
-            transaction = new LogRepoTransaction(accessors.startTransaction());
+            finishTransaction(transaction.getObjectsWritten());
             this.treeAccessor.setTransaction(transaction);
 
             return commitPointer;
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+
+/**
+ * Immutable index of a pack that doesn't change anymore.
+ *
+ * The hashes are sorted (unsigned) and a fan-out table gives the range of hashes for each first hash byte, i.e. a
+ * lookup is a fan-out table read plus a binary search in a small range. The file is memory mapped.
+ *
+ * Disk structure:
+ * ------------------
+ * Header: version (short) | hash size (short) | number of entries (int)
+ * ------------------
+ * fan-out table: 256 x int; entry i is the number of hashes with a first byte <= i
+ * ------------------
+ * sorted hashes: number of entries x hash size
+ * ------------------
+ * pack positions: number of entries x long (same order as the hashes)
+ * ------------------
+ */
+public class SealedPackIndex {
+    final static private short VERSION = 1;
+    final static private int HEADER_SIZE = 2 + 2 + 4;
+    final static private int FAN_OUT_SIZE = 256 * 4;
+
+    final private MappedByteBuffer buffer;
+    final private short hashSize;
+    final private int nEntries;
+
+    private SealedPackIndex(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE + FAN_OUT_SIZE)
+            throw new IOException("Sealed pack index too short");
+        short version = buffer.getShort(0);
+        if (version != VERSION)
+            throw new IOException("Unsupported sealed pack index version: " + version);
+        this.hashSize = buffer.getShort(2);
+        this.nEntries = buffer.getInt(4);
+        if (buffer.limit() != HEADER_SIZE + FAN_OUT_SIZE + (long)nEntries * (hashSize + 8))
+            throw new IOException("Sealed pack index size mismatch");
+    }
+
+    static public SealedPackIndex open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Sealed pack index too large");
+            // the mapping stays valid after closing the file
+            return new SealedPackIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file first and then renames it so that a crash never leaves a partial index.
+     *
+     * @param hashes hashes in unsigned order
+     * @param positions pack positions of the hashes
+     */
+    static public void write(File file, int hashSize, List<HashValue> hashes, List<Long> positions)
+            throws IOException {
+        assert hashes.size() == positions.size();
+        int[] fanOut = new int[256];
+        for (HashValue hash : hashes)
+            fanOut[hash.getBytes()[0] & 0xFF]++;
+        for (int i = 1; i < fanOut.length; i++)
+            fanOut[i] += fanOut[i - 1];
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+        try {
+            outputStream.writeShort(VERSION);
+            outputStream.writeShort(hashSize);
+            outputStream.writeInt(hashes.size());
+            for (int count : fanOut)
+                outputStream.writeInt(count);
+            HashValue previous = null;
+            for (HashValue hash : hashes) {
+                if (hash.size() != hashSize)
+                    throw new IOException("Hash size mismatch");
+                if (previous != null && previous.compareTo(hash) >= 0)
+                    throw new IOException("Hashes are not sorted");
+                outputStream.write(hash.getBytes());
+                previous = hash;
+            }
+            for (Long position : positions)
+                outputStream.writeLong(position);
+            outputStream.flush();
+            fileOutputStream.getChannel().force(false);
+        } finally {
+            outputStream.close();
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Failed to rename " + tmpFile.getPath());
+    }
+
+    public int getHashSize() {
+        return hashSize;
+    }
+
+    public int size() {
+        return nEntries;
+    }
+
+    /**
+     * @return the pack position of the hash or null if the hash is not in the index
+     */
+    public Long get(byte[] hash) {
+        assert hash.length == hashSize;
+        int first = hash[0] & 0xFF;
+        int low = first == 0 ? 0 : buffer.getInt(HEADER_SIZE + 4 * (first - 1));
+        int high = buffer.getInt(HEADER_SIZE + 4 * first) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareHash(middle, hash);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return getPosition(middle);
+        }
+        return null;
+    }
+
+    public HashValue getHash(int index) {
+        byte[] hash = new byte[hashSize];
+        int offset = hashOffset(index);
+        for (int i = 0; i < hashSize; i++)
+            hash[i] = buffer.get(offset + i);
+        return new HashValue(hash);
+    }
+
+    public long getPosition(int index) {
+        return buffer.getLong(HEADER_SIZE + FAN_OUT_SIZE + nEntries * hashSize + index * 8);
+    }
+
+    private int hashOffset(int index) {
+        return HEADER_SIZE + FAN_OUT_SIZE + index * hashSize;
+    }
+
+    /**
+     * Compares the hash at index with the given hash (unsigned), without allocating.
+     */
+    private int compareHash(int index, byte[] hash) {
+        int offset = hashOffset(index);
+        for (int i = 0; i < hashSize; i++) {
+            int a = buffer.get(offset + i) & 0xFF;
+            int b = hash[i] & 0xFF;
+            if (a != b)
+                return a - b;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoHelper;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Chunk store that is split into independent shards by the leading bits of the chunk hash.
+ *
+ * Each shard is a complete ChunkStore with its own pack, index, write ahead log and write lock, i.e. writers that put
+ * chunks into different shards don't block each other. The shards can be spread over several directories, e.g. on
+ * different disks; shard i goes into directory i % number of directories.
+ *
+ * Committing a transaction commits all shards one after the other. A crash in between leaves some shards committed;
+ * since chunks are content addressed this only leaves unreferenced chunks that are removed by the next compaction.
+ *
+ * Sealing, compaction and the store statistics (bloom filter, chunk cache) are per shard, see getShard().
+ *
+ * Layout file (name.shards in the first directory):
+ * ------------------
+ * version (short) | number of shards (int) | number of directories (int)
+ * ------------------
+ */
+public class ShardedChunkStore extends ChunkStore {
+    final static private short VERSION = 1;
+    final static public int MAX_SHARDS = 256;
+
+    /**
+     * Routes all calls to the transactions of the shards.
+     */
+    public class ShardedTransaction extends Transaction {
+        @Override
+        public byte[] getChunk(HashValue hash) throws IOException {
+            return getShard(hash).getChunk(hash);
+        }
+
+        @Override
+        public PutResult<HashValue> put(byte[] data) throws IOException {
+            HashValue hash = new HashValue(CryptoHelper.sha256Hash(data));
+            return getShard(hash).put(hash, data);
+        }
+
+        /**
+         * Puts the chunks of each shard in one batch.
+         */
+        @Override
+        public List<PutResult<HashValue>> putAll(List<byte[]> chunks) throws IOException {
+            List<HashValue> hashes = new ArrayList<>(chunks.size());
+            List<List<Integer>> shardIndices = new ArrayList<>(shards.length);
+            for (int i = 0; i < shards.length; i++)
+                shardIndices.add(new ArrayList<Integer>());
+            for (int i = 0; i < chunks.size(); i++) {
+                HashValue hash = new HashValue(CryptoHelper.sha256Hash(chunks.get(i)));
+                hashes.add(hash);
+                shardIndices.get(getShardIndex(hash.getBytes())).add(i);
+            }
+
+            List<PutResult<HashValue>> results = new ArrayList<>(Collections.<PutResult<HashValue>>nCopies(
+                    chunks.size(), null));
+            for (int shard = 0; shard < shards.length; shard++) {
+                List<Integer> indices = shardIndices.get(shard);
+                if (indices.isEmpty())
+                    continue;
+                List<HashValue> shardHashes = new ArrayList<>(indices.size());
+                List<byte[]> shardChunks = new ArrayList<>(indices.size());
+                for (Integer index : indices) {
+                    shardHashes.add(hashes.get(index));
+                    shardChunks.add(chunks.get(index));
+                }
+                List<PutResult<HashValue>> shardResults = shards[shard].putAll(shardHashes, shardChunks);
+                for (int i = 0; i < indices.size(); i++)
+                    results.set(indices.get(i), shardResults.get(i));
+            }
+            return results;
+        }
+
+        @Override
+        public boolean contains(HashValue hash) throws IOException {
+            return getShard(hash).openTransaction().contains(hash);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            for (ChunkStore shard : shards)
+                shard.openTransaction().commit();
+            synchronized (ShardedChunkStore.this) {
+                if (currentTransaction == this)
+                    currentTransaction = null;
+            }
+        }
+
+        @Override
+        public void commit(ICommitPublisher publisher) throws IOException {
+            for (ChunkStore shard : shards)
+                shard.beginPublishing();
+            try {
+                for (ChunkStore shard : shards)
+                    shard.openTransaction().commit();
+                publisher.publish();
+            } finally {
+                for (ChunkStore shard : shards)
+                    shard.endPublishing();
+            }
+            synchronized (ShardedChunkStore.this) {
+                if (currentTransaction == this)
+                    currentTransaction = null;
+            }
+        }
+    }
+
+    final private ChunkStore[] shards;
+    // number of leading hash bits that select the shard
+    final private int shardBits;
+    private ShardedTransaction currentTransaction;
+
+    private ShardedChunkStore(ChunkStore[] shards, Settings settings) {
+        super(settings);
+        this.shards = shards;
+        this.shardBits = Integer.numberOfTrailingZeros(shards.length);
+    }
+
+    static public ShardedChunkStore create(File dir, String name, int nShards) throws IOException {
+        return create(Collections.singletonList(dir), name, nShards, Settings.getDefault());
+    }
+
+    /**
+     * @param dirs directories the shards are distributed over
+     * @param nShards number of shards; a power of two that is not larger than MAX_SHARDS
+     */
+    static public ShardedChunkStore create(List<File> dirs, String name, int nShards, Settings settings)
+            throws IOException {
+        if (nShards < 1 || nShards > MAX_SHARDS || Integer.bitCount(nShards) != 1)
+            throw new IOException("Invalid number of shards: " + nShards);
+        if (dirs.isEmpty())
+            throw new IOException("No shard directory");
+        writeLayout(layoutFile(dirs, name), nShards, dirs.size());
+        ChunkStore[] shards = new ChunkStore[nShards];
+        for (int i = 0; i < nShards; i++)
+            shards[i] = ChunkStore.create(shardDir(dirs, i), shardName(name, i), settings);
+        return new ShardedChunkStore(shards, settings);
+    }
+
+    static public ShardedChunkStore open(File dir, String name) throws IOException {
+        return open(Collections.singletonList(dir), name, Settings.getDefault());
+    }
+
+    /**
+     * @param dirs the same directories (in the same order) the store has been created with
+     */
+    static public ShardedChunkStore open(List<File> dirs, String name, Settings settings) throws IOException {
+        if (dirs.isEmpty())
+            throw new IOException("No shard directory");
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(layoutFile(dirs, name))));
+        int nShards;
+        try {
+            short version = inputStream.readShort();
+            if (version != VERSION)
+                throw new IOException("Unsupported shard layout version: " + version);
+            nShards = inputStream.readInt();
+            int nDirs = inputStream.readInt();
+            if (nDirs != dirs.size())
+                throw new IOException("Store has been created with " + nDirs + " directories but got " + dirs.size());
+        } finally {
+            inputStream.close();
+        }
+        if (nShards < 1 || nShards > MAX_SHARDS || Integer.bitCount(nShards) != 1)
+            throw new IOException("Invalid number of shards: " + nShards);
+
+        ChunkStore[] shards = new ChunkStore[nShards];
+        for (int i = 0; i < nShards; i++)
+            shards[i] = ChunkStore.open(shardDir(dirs, i), shardName(name, i), settings);
+        return new ShardedChunkStore(shards, settings);
+    }
+
+    static private File layoutFile(List<File> dirs, String name) {
+        return new File(dirs.get(0), name + ".shards");
+    }
+
+    static private void writeLayout(File file, int nShards, int nDirs) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file));
+        try {
+            outputStream.writeShort(VERSION);
+            outputStream.writeInt(nShards);
+            outputStream.writeInt(nDirs);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    static private File shardDir(List<File> dirs, int shard) {
+        return dirs.get(shard % dirs.size());
+    }
+
+    static private String shardName(String name, int shard) {
+        return name + ".shard" + shard;
+    }
+
+    private int getShardIndex(byte[] hash) {
+        if (shardBits == 0)
+            return 0;
+        return (hash[0] & 0xFF) >>> (8 - shardBits);
+    }
+
+    private ChunkStore getShard(HashValue hash) {
+        return shards[getShardIndex(hash.getBytes())];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public ChunkStore getShard(int index) {
+        return shards[index];
+    }
+
+    @Override
+    public byte[] getChunk(byte[] hash) throws IOException {
+        return shards[getShardIndex(hash)].getChunk(hash);
+    }
+
+    @Override
+    public boolean hasChunk(HashValue hashValue) throws IOException {
+        return getShard(hashValue).hasChunk(hashValue);
+    }
+
+    @Override
+    public Transaction openTransaction() throws IOException {
+        synchronized (this) {
+            if (currentTransaction != null)
+                return currentTransaction;
+            currentTransaction = new ShardedTransaction();
+            return currentTransaction;
+        }
+    }
+
+    @Override
+    public void sealPack() throws IOException {
+        for (ChunkStore shard : shards)
+            shard.sealPack();
+    }
+
+    @Override
+    public int getSealedPackCount() {
+        int count = 0;
+        for (ChunkStore shard : shards)
+            count += shard.getSealedPackCount();
+        return count;
+    }
+
+    @Override
+    public long compactIndex() throws IOException {
+        long removed = 0;
+        for (ChunkStore shard : shards)
+            removed += shard.compactIndex();
+        return removed;
+    }
+
+    /**
+     * Not supported; compact the shards individually.
+     */
+    @Override
+    public Compaction startCompaction() throws IOException {
+        throw new IOException("Compact each shard individually");
+    }
+}
@@ -8,7 +8,6 @@
 package org.fejoa.chunkstore;
 
 import org.fejoa.library.crypto.CryptoException;
-import org.fejoa.library.support.StreamHelper;
 
 import java.io.IOException;
 
@@ -90,8 +89,7 @@ public class TreeAccessor {
         assert fileEntry.isFile();
 
         FileBox fileBox = FileBox.read(transaction.getFileAccessor(path), fileEntry.getDataPointer());
-        ChunkContainerInputStream inputStream = new ChunkContainerInputStream(fileBox.getDataContainer());
-        return StreamHelper.readAll(inputStream);
+        return new ChunkContainerInputStream(fileBox.getDataContainer()).readAll();
     }
 
     public DirectoryBox.Entry put(String path, BoxPointer dataPointer, boolean isFile) throws IOException,
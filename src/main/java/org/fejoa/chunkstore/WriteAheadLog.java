@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+/**
+ * Log of chunks that have been put but are not yet in the pack file.
+ *
+ * Disk structure:
+ * ------------------
+ * Header: version (short) | hash size (short)
+ * ------------------
+ * transaction 1
+ * ------------------
+ * transaction 2
+ * ------------------
+ * ...
+ *
+ * A transaction is a list of chunk records terminated by a commit record:
+ * CHUNK_RECORD (byte) | hash | data length (int) | data
+ * ...
+ * COMMIT_RECORD (byte) | number of chunk records (int) | CRC32 of all chunk records (long)
+ *
+ * A transaction is only durable once its commit record has been synced. Chunk records without a valid commit record
+ * are discarded when recovering the log.
+ */
+public class WriteAheadLog {
+    public interface IApplier {
+        void apply(HashValue hash, byte[] data) throws IOException;
+    }
+
+    final static private byte CHUNK_RECORD = 1;
+    final static private byte COMMIT_RECORD = 2;
+
+    private short version = 1;
+    private short hashSize;
+    final private RandomAccessFile file;
+    // start of the current uncommitted transaction
+    private long transactionStart;
+    private int nChunkRecords;
+    final private CRC32 checksum = new CRC32();
+
+    public WriteAheadLog(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    synchronized public void create(int hashSize) throws IOException {
+        this.hashSize = (short)hashSize;
+
+        file.setLength(0);
+        writeHeader();
+        startTransaction(headerSize());
+    }
+
+    synchronized public void open(int hashSize) throws IOException {
+        if (file.length() < headerSize()) {
+            create(hashSize);
+            return;
+        }
+        readHeader();
+        if (this.hashSize != hashSize)
+            throw new IOException("Hash size mismatch in write ahead log");
+        startTransaction(file.length());
+    }
+
+    private void readHeader() throws IOException {
+        file.seek(0);
+        version = file.readShort();
+        hashSize = file.readShort();
+    }
+
+    private void writeHeader() throws IOException {
+        file.seek(0);
+        file.writeShort(version);
+        file.writeShort(hashSize);
+    }
+
+    private long headerSize() {
+        return 2 * 2;
+    }
+
+    private void startTransaction(long position) {
+        transactionStart = position;
+        nChunkRecords = 0;
+        checksum.reset();
+    }
+
+    synchronized public long length() throws IOException {
+        return file.length();
+    }
+
+    /**
+     * @return true if the log doesn't contain any (complete or incomplete) transaction
+     */
+    synchronized public boolean isEmpty() throws IOException {
+        return file.length() <= headerSize();
+    }
+
+    /**
+     * Appends a chunk record to the current transaction. The record is not synced.
+     *
+     * @return the position of the record
+     */
+    synchronized public long append(HashValue hash, byte[] data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1 + hashSize + 4 + data.length);
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeByte(CHUNK_RECORD);
+        dataOutputStream.write(hash.getBytes());
+        dataOutputStream.writeInt(data.length);
+        dataOutputStream.write(data);
+        byte[] record = outputStream.toByteArray();
+
+        long position = file.length();
+        file.seek(position);
+        file.write(record);
+        checksum.update(record, 0, record.length);
+        nChunkRecords++;
+        return position;
+    }
+
+    public byte[] read(long position, byte[] expectedHash) throws IOException {
+        ChunkRecord record = readRecord(position);
+        if (expectedHash != null && !Arrays.equals(expectedHash, record.hash.getBytes()))
+            throw new IOException("Unexpected chunk at position " + position);
+        return record.data;
+    }
+
+    /**
+     * Writes the commit record, syncs the log once and then passes all chunks of the transaction to the applier.
+     *
+     * The log is not locked while the applier runs so readers can still access the log.
+     */
+    public void commit(IApplier applier) throws IOException {
+        long[] range = writeCommitRecord();
+        if (range == null)
+            return;
+        replay(range[0], range[1], applier);
+    }
+
+    /**
+     * @return start and end of the committed chunk records or null if there was nothing to commit
+     */
+    synchronized private long[] writeCommitRecord() throws IOException {
+        if (nChunkRecords == 0)
+            return null;
+
+        long start = transactionStart;
+        long end = file.length();
+        file.seek(end);
+        file.writeByte(COMMIT_RECORD);
+        file.writeInt(nChunkRecords);
+        file.writeLong(checksum.getValue());
+        file.getChannel().force(false);
+        startTransaction(file.length());
+        return new long[]{start, end};
+    }
+
+    /**
+     * Replays all committed transactions and discards an incomplete transaction at the end of the log.
+     */
+    synchronized public void recover(IApplier applier) throws IOException {
+        long fileLength = file.length();
+        long position = headerSize();
+        long start = position;
+        int nRecords = 0;
+        CRC32 recoverChecksum = new CRC32();
+        while (position < fileLength) {
+            file.seek(position);
+            byte type = file.readByte();
+            if (type == CHUNK_RECORD) {
+                long recordEnd = position + 1 + hashSize + 4;
+                if (recordEnd > fileLength)
+                    break;
+                file.seek(position + 1 + hashSize);
+                int dataLength = file.readInt();
+                recordEnd += dataLength;
+                if (dataLength < 0 || recordEnd > fileLength)
+                    break;
+                byte[] record = new byte[(int)(recordEnd - position)];
+                file.seek(position);
+                file.readFully(record);
+                recoverChecksum.update(record, 0, record.length);
+                nRecords++;
+                position = recordEnd;
+            } else if (type == COMMIT_RECORD) {
+                long commitEnd = position + 1 + 4 + 8;
+                if (commitEnd > fileLength)
+                    break;
+                int nCommitted = file.readInt();
+                long committedChecksum = file.readLong();
+                if (nCommitted != nRecords || committedChecksum != recoverChecksum.getValue())
+                    break;
+                replay(start, position, applier);
+
+                position = commitEnd;
+                start = position;
+                nRecords = 0;
+                recoverChecksum.reset();
+            } else {
+                break;
+            }
+        }
+        // discard the incomplete transaction
+        file.setLength(start);
+        startTransaction(start);
+    }
+
+    private class ChunkRecord {
+        HashValue hash;
+        byte[] data;
+        long next;
+    }
+
+    synchronized private ChunkRecord readRecord(long position) throws IOException {
+        file.seek(position);
+        if (file.readByte() != CHUNK_RECORD)
+            throw new IOException("Not a chunk record at position " + position);
+        ChunkRecord record = new ChunkRecord();
+        record.hash = new HashValue(hashSize);
+        file.readFully(record.hash.getBytes());
+        record.data = new byte[file.readInt()];
+        file.readFully(record.data);
+        record.next = file.getFilePointer();
+        return record;
+    }
+
+    private void replay(long start, long end, IApplier applier) throws IOException {
+        long position = start;
+        while (position < end) {
+            ChunkRecord record = readRecord(position);
+            applier.apply(record.hash, record.data);
+            position = record.next;
+        }
+    }
+
+    /**
+     * Removes all transactions from the log. Must only be called when all committed transactions have been synced to
+     * the pack and index file and no transaction is open.
+     */
+    synchronized public void reset() throws IOException {
+        if (nChunkRecords != 0)
+            throw new IOException("Can't reset the log while a transaction is open");
+        file.setLength(headerSize());
+        startTransaction(headerSize());
+    }
+}
@@ -26,7 +26,7 @@ public class PushHandler {
     public static void handlePutChunks(ChunkStore chunkStore, RequestHandler.IBranchLogGetter logGetter,
                                        IRemotePipe pipe, DataInputStream inputStream) throws IOException {
         String branch = StreamHelper.readString(inputStream);
-        ChunkStoreBranchLog branchLog = logGetter.get(branch);
+        final ChunkStoreBranchLog branchLog = logGetter.get(branch);
         if (branchLog == null) {
             RequestHandler.makeError(new DataOutputStream(pipe.getOutputStream()), "No access to branch: " + branch);
             return;
@@ -36,6 +36,8 @@ public class PushHandler {
         final String logMessage = StreamHelper.readString(inputStream);
         final int nChunks = inputStream.readInt();
         final List<HashValue> added = new ArrayList<>();
+        // The transaction is shared with the other writers of the store, i.e. it can't be rolled back when the push
+        // fails. The chunks that have been put so far are not referenced and are removed by a compaction.
         for (int i = 0; i < nChunks; i++) {
             HashValue chunkHash = Config.newBoxHash();
             inputStream.readFully(chunkHash.getBytes());
@@ -48,19 +50,28 @@ public class PushHandler {
             added.add(chunkHash);
         }
 
-        transaction.commit();
-        DataOutputStream outputStream = new DataOutputStream(pipe.getOutputStream());
-
-        try {
-            branchLog.lock();
-            ChunkStoreBranchLog.Entry latest = branchLog.getLatest();
-            if (latest != null && latest.getRev() != rev) {
-                RequestHandler.makeError(outputStream, "Rev log changed.");
-                return;
+        final boolean[] revChanged = {false};
+        // add the new head before a compaction can collect the live chunks
+        transaction.commit(new ChunkStore.ICommitPublisher() {
+            @Override
+            public void publish() throws IOException {
+                try {
+                    branchLog.lock();
+                    ChunkStoreBranchLog.Entry latest = branchLog.getLatest();
+                    if (latest != null && latest.getRev() != rev) {
+                        revChanged[0] = true;
+                        return;
+                    }
+                    branchLog.add(logMessage, added);
+                } finally {
+                    branchLog.unlock();
+                }
             }
-            branchLog.add(logMessage, added);
-        } finally {
-            branchLog.unlock();
+        });
+        DataOutputStream outputStream = new DataOutputStream(pipe.getOutputStream());
+        if (revChanged[0]) {
+            RequestHandler.makeError(outputStream, "Rev log changed.");
+            return;
         }
 
         Request.writeRequestHeader(outputStream, PUT_CHUNKS);
@@ -17,7 +17,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class BPlusTreeTest extends TestCase {
@@ -285,6 +288,25 @@ public class BPlusTreeTest extends TestCase {
         tree.print();
     }
 
+    public void testRemoveFromLeftmostLeaf() throws Exception {
+        String fileName = "removeLeftmostLeaf.idx";
+        cleanUpFiles.add(fileName);
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree bTree = new BPlusTree(file);
+        bTree.create((short)2, tileSize(2, 2, bTree));
+        TestTree tree = new TestTree(bTree);
+        tree.put("0001", 1l);
+        tree.put("0002", 2l);
+        tree.put("0003", 3l);
+        tree.print();
+
+        // the leftmost leaf has no left neighbour and takes a key from the right neighbour
+        assertTrue(tree.remove("0001"));
+        tree.validate();
+        tree.print();
+    }
+
 
     private void add(TestTree tree, Random generator, int items, List<String> added) throws IOException {
         for (int i = 0; i < items; i++) {
@@ -324,6 +346,121 @@ public class BPlusTreeTest extends TestCase {
         tree.validate();
     }
 
+    public void testPutAll() throws IOException {
+        String fileName = "putAll.idx";
+        cleanUpFiles.add(fileName);
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree bTree = new BPlusTree(file);
+        bTree.create(32, 1024);
+        TestTree tree = new TestTree(bTree);
+        Random generator = new Random(1);
+
+        // the first batch goes into an empty tree
+        for (int batch = 0; batch < 3; batch++) {
+            // some entries the next batch is merged into
+            if (batch > 0)
+                add(tree, generator, 500, null);
+            List<HashValue> hashes = new ArrayList<>();
+            List<Long> values = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                Long value = (long) (Long.MAX_VALUE * generator.nextDouble());
+                String hash = CryptoHelper.sha256HashHex(value.toString());
+                hashes.add(HashValue.fromHex(hash));
+                values.add(value);
+                tree.entries.put(hash, value);
+            }
+            assertEquals(hashes.size(), bTree.putAll(hashes, values));
+            // existing keys are not inserted again
+            assertEquals(0, bTree.putAll(hashes.subList(0, 10), values.subList(0, 10)));
+        }
+        tree.validate();
+
+        // reopen
+        bTree = new BPlusTree(new RandomAccessFile(fileName, "rw"));
+        bTree.open();
+        for (Map.Entry<String, Long> entry : tree.entries.entrySet())
+            assertEquals(entry.getValue(), bTree.get(entry.getKey()));
+    }
+
+    public void testNodeCache() throws IOException {
+        String cachedFileName = "nodeCache.idx";
+        String uncachedFileName = "nodeCacheDisabled.idx";
+        cleanUpFiles.add(cachedFileName);
+        cleanUpFiles.add(uncachedFileName);
+
+        BPlusTree cachedTree = new BPlusTree(new RandomAccessFile(cachedFileName, "rw"));
+        cachedTree.create(32, 512);
+        cachedTree.setNodeCacheCapacity(8);
+        BPlusTree uncachedTree = new BPlusTree(new RandomAccessFile(uncachedFileName, "rw"));
+        uncachedTree.create(32, 512);
+        uncachedTree.setNodeCacheCapacity(0);
+        TestTree cached = new TestTree(cachedTree);
+        TestTree uncached = new TestTree(uncachedTree);
+
+        // the cache must not change the tree, i.e. both files are the same
+        List<String> added = new ArrayList<>();
+        add(cached, new Random(1), 2000, added);
+        add(uncached, new Random(1), 2000, null);
+        assertTrue(cachedTree.getDepth() > 2);
+        assertTrue(cachedTree.getCachedNodeCount() > 0);
+        assertTrue(cachedTree.getCachedNodeCount() <= 8);
+        assertEquals(0, uncachedTree.getCachedNodeCount());
+
+        Random generator = new Random(2);
+        for (int i = 0; i < 50; i++) {
+            String hash = added.remove(generator.nextInt(added.size()));
+            assertTrue(cached.remove(hash));
+            assertTrue(uncached.remove(hash));
+        }
+        add(cached, new Random(3), 500, null);
+        add(uncached, new Random(3), 500, null);
+        cached.validate();
+        uncached.validate();
+        assertTrue(Arrays.equals(Files.readAllBytes(Paths.get(cachedFileName)),
+                Files.readAllBytes(Paths.get(uncachedFileName))));
+    }
+
+    public void testKeyOrder() throws IOException {
+        // the tree order is the order of new BigInteger(key)
+        List<byte[]> keys = new ArrayList<>();
+        Random generator = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+        }
+        byte[][] edgeKeys = new byte[4][32];
+        edgeKeys[1][0] = (byte)0x7F;
+        edgeKeys[2][0] = (byte)0x80;
+        Arrays.fill(edgeKeys[3], (byte)0xFF);
+        keys.addAll(Arrays.asList(edgeKeys));
+        byte[] sameFirstByte = keys.get(0).clone();
+        sameFirstByte[31] ^= 0x80;
+        keys.add(sameFirstByte);
+        for (byte[] a : keys) {
+            for (byte[] b : keys) {
+                assertEquals(Integer.signum(new BigInteger(a).compareTo(new BigInteger(b))),
+                        Integer.signum(BPlusTree.compareKeys(a, b)));
+            }
+        }
+
+        String fileName = "keyOrder.idx";
+        cleanUpFiles.add(fileName);
+        BPlusTree tree = new BPlusTree(new RandomAccessFile(fileName, "rw"));
+        tree.create(32, 512);
+        for (int i = 0; i < keys.size(); i++)
+            assertTrue(tree.put(new HashValue(keys.get(i)), (long)i + 1));
+        assertTrue(tree.getDepth() > 2);
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals((Long)((long)i + 1), tree.get(keys.get(i)));
+        for (int i = 0; i < 100; i++) {
+            byte[] missing = new byte[32];
+            generator.nextBytes(missing);
+            assertNull(tree.get(missing));
+        }
+    }
+
     private BigInteger hash(BigInteger number) {
         int n = 50;
         BigInteger p = new BigInteger("103");
@@ -342,6 +479,477 @@ public class BPlusTreeTest extends TestCase {
         return n1.modPow(e, p);
     }
 
+    private List<byte[]> collect(BPlusTree.EntryIterator iterator) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        while (iterator.hasNext())
+            keys.add(iterator.next().getKey());
+        return keys;
+    }
+
+    private void assertKeys(List<byte[]> expected, List<byte[]> keys) {
+        assertEquals(expected.size(), keys.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertTrue(Arrays.equals(expected.get(i), keys.get(i)));
+    }
+
+    public void testIterator() throws IOException {
+        String fileName = "iterator.idx";
+        cleanUpFiles.add(fileName);
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree tree = new BPlusTree(file);
+        tree.create(32, 256);
+        assertFalse(tree.iterator().hasNext());
+
+        Random generator = new Random(2);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+            assertTrue(tree.put(new HashValue(key), (long)i + 1));
+        }
+        assertTrue(tree.getDepth() > 2);
+        List<byte[]> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return BPlusTree.compareKeys(a, b);
+            }
+        });
+
+        // full scan
+        BPlusTree.EntryIterator iterator = tree.iterator();
+        for (byte[] key : sorted) {
+            assertTrue(iterator.hasNext());
+            BPlusTree.Entry<Long> entry = iterator.next();
+            assertTrue(Arrays.equals(key, entry.getKey()));
+            assertEquals((Long)((long)keys.indexOf(key) + 1), entry.getValue());
+        }
+        assertFalse(iterator.hasNext());
+
+        // range scans; the bounds are existing and missing keys
+        assertKeys(sorted.subList(100, 200), collect(tree.iterator(sorted.get(100), sorted.get(200))));
+        byte[] between = sorted.get(300).clone();
+        between[31]++;
+        assertKeys(sorted.subList(301, sorted.size()), collect(tree.iterator(between, null)));
+        assertKeys(sorted.subList(0, 301), collect(tree.iterator(null, between)));
+        assertKeys(new ArrayList<byte[]>(), collect(tree.iterator(sorted.get(5), sorted.get(5))));
+
+        // prefix scans
+        for (byte[] prefix : new byte[][]{{}, {sorted.get(42)[0]}, Arrays.copyOf(sorted.get(42), 2),
+                Arrays.copyOf(sorted.get(42), 32), {(byte)0x80}, {(byte)0x7F, (byte)0xFF}}) {
+            List<byte[]> expected = new ArrayList<>();
+            for (byte[] key : sorted) {
+                if (Arrays.equals(prefix, Arrays.copyOf(key, prefix.length)))
+                    expected.add(key);
+            }
+            assertKeys(expected, collect(tree.prefixIterator(prefix)));
+        }
+
+        // modifications don't affect an open iterator
+        iterator = tree.iterator();
+        for (int i = 0; i < 50; i++)
+            assertTrue(Arrays.equals(sorted.get(i), iterator.next().getKey()));
+        for (int i = 0; i < 20; i++)
+            assertTrue(tree.remove(keys.get(i)));
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            assertTrue(tree.put(new HashValue(key), (long)i + 1));
+        }
+        List<byte[]> remaining = collect(iterator);
+        assertKeys(sorted.subList(50, sorted.size()), remaining);
+        assertEquals(680, collect(tree.iterator()).size());
+    }
+
+    public void testIteratorDefersTileReuse() throws IOException {
+        String fileName = "iteratorTiles.idx";
+        cleanUpFiles.add(fileName);
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree tree = new BPlusTree(file);
+        tree.create(32, 256);
+        Random generator = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            tree.put(new HashValue(key), (long)i + 1);
+        }
+        byte[] key = new byte[32];
+        generator.nextBytes(key);
+
+        // freed tiles are reused
+        for (int i = 0; i < 3; i++) {
+            tree.put(new HashValue(key), 1l);
+            tree.remove(key);
+        }
+        long length = file.length();
+        for (int i = 0; i < 10; i++) {
+            tree.put(new HashValue(key), 1l);
+            tree.remove(key);
+        }
+        assertEquals(length, file.length());
+
+        // ...but not while an iterator is open
+        BPlusTree.EntryIterator iterator = tree.iterator();
+        for (int i = 0; i < 10; i++) {
+            tree.put(new HashValue(key), 1l);
+            tree.remove(key);
+        }
+        assertTrue(file.length() > length);
+        assertEquals(200, collect(iterator).size());
+
+        // the deferred tiles are released with the first commit after the iterator has been closed
+        tree.put(new HashValue(key), 1l);
+        tree.remove(key);
+        length = file.length();
+        for (int i = 0; i < 20; i++) {
+            tree.put(new HashValue(key), 1l);
+            tree.remove(key);
+        }
+        assertEquals(length, file.length());
+    }
+
+    private void bulkLoad(BPlusTree tree, final List<byte[]> sortedKeys, double fillFactor) throws IOException {
+        final Iterator<byte[]> iterator = sortedKeys.iterator();
+        tree.bulkLoad(sortedKeys.size(), new BPlusTree.ISortedEntrySource<Long>() {
+            long value = 0;
+
+            @Override
+            public BPlusTree.Entry<Long> next() {
+                if (!iterator.hasNext())
+                    return null;
+                value++;
+                return new BPlusTree.Entry<>(iterator.next(), value);
+            }
+        }, fillFactor);
+    }
+
+    public void testBulkLoad() throws IOException {
+        String fileName = "bulkLoad.idx";
+        cleanUpFiles.add(fileName);
+        Random generator = new Random(4);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+        }
+        Collections.sort(keys, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return BPlusTree.compareKeys(a, b);
+            }
+        });
+
+        // 256 byte tiles hold 6 keys
+        for (int n : new int[]{0, 1, 6, 7, 43, 2000}) {
+            for (double fillFactor : new double[]{1, 0.7, 0.5}) {
+                RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+                BPlusTree tree = new BPlusTree(file);
+                tree.create(32, 256);
+                List<byte[]> sortedKeys = keys.subList(0, n);
+                bulkLoad(tree, sortedKeys, fillFactor);
+
+                tree = new BPlusTree(file);
+                tree.open();
+                for (int i = 0; i < n; i++)
+                    assertEquals((Long)((long)i + 1), tree.get(sortedKeys.get(i)));
+                assertKeys(sortedKeys, collect(tree.iterator()));
+                if (n > 1) {
+                    assertKeys(sortedKeys.subList(n / 3, n / 2), collect(tree.iterator(sortedKeys.get(n / 3),
+                            sortedKeys.get(n / 2))));
+                }
+                if (fillFactor == 1 && n == 2000) {
+                    // 334 leaves, 48 + 7 + 1 inner nodes
+                    assertEquals(4, tree.getDepth());
+                    assertEquals(390, (file.length() - 36) / 256);
+                }
+
+                // the tree can be modified as usual
+                for (int i = 0; i < 50; i++) {
+                    byte[] key = new byte[32];
+                    generator.nextBytes(key);
+                    assertTrue(tree.put(new HashValue(key), 5000l + i));
+                    assertEquals((Long)(5000l + i), tree.get(key));
+                }
+                assertEquals(n + 50, collect(tree.iterator()).size());
+                file.close();
+            }
+        }
+
+        // only newly created trees with sorted and unique keys
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree tree = new BPlusTree(file);
+        tree.create(32, 256);
+        try {
+            bulkLoad(tree, Arrays.asList(keys.get(1), keys.get(0)), 1);
+            fail();
+        } catch (IOException e) {
+        }
+        tree.create(32, 256);
+        try {
+            bulkLoad(tree, Arrays.asList(keys.get(0), keys.get(0)), 1);
+            fail();
+        } catch (IOException e) {
+        }
+        tree.create(32, 256);
+        tree.put(new HashValue(keys.get(0)), 1l);
+        try {
+            bulkLoad(tree, keys.subList(1, 2), 1);
+            fail();
+        } catch (IOException e) {
+        }
+        file.close();
+    }
+
+    public void testTransaction() throws IOException {
+        String fileName = "transaction.idx";
+        cleanUpFiles.add(fileName);
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree tree = new BPlusTree(file);
+        tree.create(32, 256);
+        Random generator = new Random(5);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+            assertTrue(tree.put(new HashValue(key), (long)i + 1));
+        }
+
+        // rollback
+        long length = file.length();
+        tree.startTransaction();
+        try {
+            tree.startTransaction();
+            fail();
+        } catch (IOException e) {
+        }
+        for (int i = 0; i < 100; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            assertTrue(tree.put(new HashValue(key), 1000l + i));
+            assertEquals((Long)(1000l + i), tree.get(key));
+        }
+        for (int i = 0; i < 10; i++)
+            assertTrue(tree.remove(keys.get(i)));
+        assertNull(tree.get(keys.get(0)));
+        tree.rollbackTransaction();
+        assertFalse(tree.isInTransaction());
+        assertEquals(length, file.length());
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals((Long)((long)i + 1), tree.get(keys.get(i)));
+        assertEquals(200, collect(tree.iterator()).size());
+
+        // commit; nodes that are modified and then freed in the same transaction are not written
+        tree.startTransaction();
+        for (int i = 200; i < 1000; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+            assertTrue(tree.put(new HashValue(key), (long)i + 1));
+        }
+        List<HashValue> batchHashes = new ArrayList<>();
+        List<Long> batchValues = new ArrayList<>();
+        for (int i = 1000; i < 1100; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+            batchHashes.add(new HashValue(key));
+            batchValues.add((long)i + 1);
+        }
+        // joins the running transaction
+        assertEquals(100, tree.putAll(batchHashes, batchValues));
+        assertTrue(tree.isInTransaction());
+        for (int i = 0; i < 20; i++)
+            assertTrue(tree.remove(keys.get(i)));
+        tree.commitTransaction();
+        try {
+            tree.commitTransaction();
+            fail();
+        } catch (IOException e) {
+        }
+
+        tree = new BPlusTree(file);
+        tree.open();
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(i < 20 ? null : (Long)((long)i + 1), tree.get(keys.get(i)));
+        assertEquals(1080, collect(tree.iterator()).size());
+        file.close();
+    }
+
+    public void testCompact() throws IOException {
+        String fileName = "compact.idx";
+        cleanUpFiles.add(fileName);
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree tree = new BPlusTree(file);
+        tree.create(32, 256);
+        assertEquals(0, tree.compact());
+
+        Random generator = new Random(6);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+            assertTrue(tree.put(new HashValue(key), (long)i + 1));
+        }
+        long nTiles = tree.getTileCount();
+        int nDeletedTiles = tree.countDeletedTiles();
+        assertTrue(nDeletedTiles > 0);
+
+        BPlusTree.EntryIterator iterator = tree.iterator();
+        try {
+            tree.compact();
+            fail();
+        } catch (IOException e) {
+        }
+        iterator.close();
+
+        assertEquals(nDeletedTiles, tree.compact());
+        assertEquals(nTiles - nDeletedTiles, tree.getTileCount());
+        assertEquals(0, tree.countDeletedTiles());
+        assertEquals(0, tree.compact());
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals((Long)((long)i + 1), tree.get(keys.get(i)));
+
+        tree = new BPlusTree(file);
+        tree.open();
+        assertEquals(nTiles - nDeletedTiles, tree.getTileCount());
+        List<byte[]> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return BPlusTree.compareKeys(a, b);
+            }
+        });
+        assertKeys(sorted, collect(tree.iterator()));
+
+        // the compacted tree can be modified as usual
+        for (int i = 0; i < 100; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+            assertTrue(tree.put(new HashValue(key), 600l + i + 1));
+        }
+        assertTrue(tree.compact() > 0);
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals((Long)((long)i + 1), tree.get(keys.get(i)));
+        file.close();
+    }
+
+    public void testSnapshot() throws Exception {
+        String fileName = "snapshot.idx";
+        cleanUpFiles.add(fileName);
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        final BPlusTree tree = new BPlusTree(file);
+        tree.create(32, 256);
+        Random generator = new Random(7);
+        final List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 1300; i++) {
+            byte[] key = new byte[32];
+            generator.nextBytes(key);
+            keys.add(key);
+        }
+        for (int i = 0; i < 300; i++)
+            tree.put(new HashValue(keys.get(i)), (long)i + 1);
+
+        BPlusTree.Snapshot snapshot1 = tree.snapshot();
+        for (int i = 300; i < 400; i++)
+            tree.put(new HashValue(keys.get(i)), (long)i + 1);
+        for (int i = 0; i < 10; i++)
+            assertTrue(tree.remove(keys.get(i)));
+        BPlusTree.Snapshot snapshot2 = tree.snapshot();
+        assertTrue(snapshot2.getEpoch() > snapshot1.getEpoch());
+        // uncommitted writes are not visible
+        tree.startTransaction();
+        for (int i = 400; i < 500; i++)
+            tree.put(new HashValue(keys.get(i)), (long)i + 1);
+        BPlusTree.Snapshot snapshot3 = tree.snapshot();
+        tree.commitTransaction();
+
+        for (int i = 0; i < 500; i++) {
+            Long value = (long)i + 1;
+            assertEquals(i < 300 ? value : null, snapshot1.get(keys.get(i)));
+            assertEquals(i >= 10 && i < 400 ? value : null, snapshot2.get(keys.get(i)));
+            assertEquals(i >= 10 && i < 400 ? value : null, snapshot3.get(keys.get(i)));
+            assertEquals(i >= 10 ? value : null, tree.get(keys.get(i)));
+        }
+        assertEquals(300, collect(snapshot1.iterator()).size());
+        assertEquals(390, collect(snapshot2.iterator()).size());
+        assertEquals(490, collect(tree.iterator()).size());
+        snapshot3.close();
+        snapshot2.close();
+        snapshot1.close();
+        try {
+            snapshot1.get(keys.get(0));
+            fail();
+        } catch (IOException e) {
+        }
+
+        // tiles freed while a snapshot is open are not reused...
+        byte[] key = keys.get(500);
+        // the next commit releases the tiles freed while snapshot 1 to 3 have been open
+        tree.put(new HashValue(key), 1l);
+        tree.remove(key);
+        int nFreeTiles = tree.countDeletedTiles();
+        BPlusTree.Snapshot snapshot4 = tree.snapshot();
+        for (int i = 0; i < 10; i++) {
+            tree.put(new HashValue(key), 1l);
+            tree.remove(key);
+        }
+        assertTrue(tree.countDeletedTiles() < nFreeTiles);
+        // ...till there is no older or equally old snapshot
+        BPlusTree.Snapshot snapshot5 = tree.snapshot();
+        snapshot4.close();
+        nFreeTiles = tree.countDeletedTiles();
+        tree.put(new HashValue(key), 1l);
+        assertTrue(tree.countDeletedTiles() > nFreeTiles);
+        tree.remove(key);
+        snapshot5.close();
+
+        // concurrent readers
+        final int nInserted = 500;
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random readerGenerator = new Random(t);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (writing.get()) {
+                            BPlusTree.Snapshot snapshot = tree.snapshot();
+                            try {
+                                // the keys are inserted in order, i.e. a snapshot contains a prefix of the keys
+                                int count = collect(snapshot.iterator()).size() + 10;
+                                for (int i = 0; i < 20; i++) {
+                                    int index = 10 + readerGenerator.nextInt(count - 10);
+                                    assertEquals((Long)((long)index + 1), snapshot.get(keys.get(index)));
+                                }
+                                assertNull(snapshot.get(keys.get(count)));
+                            } finally {
+                                snapshot.close();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            readers.add(reader);
+            reader.start();
+        }
+        for (int i = nInserted; i < keys.size(); i++)
+            tree.put(new HashValue(keys.get(i)), (long)i + 1);
+        writing.set(false);
+        for (Thread reader : readers)
+            reader.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        file.close();
+    }
+
     public void testTemp() {
         BigInteger salt = new BigInteger("32");
         BigInteger c0 = new BigInteger("78");
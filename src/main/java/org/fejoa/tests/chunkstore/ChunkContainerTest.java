@@ -17,8 +17,12 @@ import javax.crypto.SecretKey;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class ChunkContainerTest extends TestCase {
@@ -27,6 +31,7 @@ public class ChunkContainerTest extends TestCase {
     ICryptoInterface cryptoInterface = new BCCryptoInterface();
     SecretKey secretKey;
     final ChunkSplitter splitter = new RabinSplitter();
+    ChunkStore preparedChunkStore;
 
     @Override
     protected void setUp() throws Exception {
@@ -108,6 +113,7 @@ public class ChunkContainerTest extends TestCase {
         dir.mkdirs();
 
         final ChunkStore chunkStore = ChunkStore.create(dir, name);
+        preparedChunkStore = chunkStore;
 
         IChunkAccessor accessor = getAccessor(chunkStore);
         ChunkContainer chunkContainer = new ChunkContainer(accessor, nodeSplitter);
@@ -117,6 +123,9 @@ public class ChunkContainerTest extends TestCase {
 
     private ChunkContainer openContainer(String dirName, String name, BoxPointer pointer)
             throws IOException, CryptoException {
+        // make the chunks of the prepared container durable
+        if (preparedChunkStore != null)
+            preparedChunkStore.openTransaction().commit();
         final ChunkStore chunkStore = ChunkStore.open(new File(dirName), name);
         IChunkAccessor accessor = getAccessor(chunkStore);
         ChunkContainer chunkContainer = ChunkContainer.read(accessor, pointer);
@@ -441,4 +450,291 @@ public class ChunkContainerTest extends TestCase {
 
         assertTrue(Arrays.equals(dataHash.getBytes(), chunkHash.digest()));
     }
+
+    public void testBulkRead() throws Exception {
+        byte[] data = new byte[200 * 1000];
+        new Random(1).nextBytes(data);
+
+        final String dirName = "testBulkReadDir";
+        final String name = "test";
+        final ChunkSplitter dataSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        final ChunkSplitter nodeSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        ChunkContainer chunkContainer = prepareContainer(dirName, name, nodeSplitter);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer, dataSplitter);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+        chunkContainer = openContainer(dirName, name, chunkContainer.getBoxPointer());
+
+        // reads that cross chunk boundaries
+        ChunkContainerInputStream inputStream = new ChunkContainerInputStream(chunkContainer);
+        assertEquals(data.length, inputStream.available());
+        byte[] buffer = new byte[data.length + 10];
+        int offset = 0;
+        int bunchSize = 1;
+        while (true) {
+            int read = inputStream.read(buffer, offset, Math.min(bunchSize, buffer.length - offset));
+            if (read < 0)
+                break;
+            offset += read;
+            bunchSize = bunchSize * 3 + 1;
+        }
+        assertEquals(data.length, offset);
+        assertTrue(Arrays.equals(data, Arrays.copyOf(buffer, offset)));
+        assertEquals(0, inputStream.available());
+        assertEquals(-1, inputStream.read(buffer, 0, 1));
+
+        // skip, mixed single and bulk reads
+        inputStream = new ChunkContainerInputStream(chunkContainer);
+        assertEquals(5000, inputStream.skip(5000));
+        assertEquals(data[5000] & 0xff, inputStream.read());
+        assertEquals(10, inputStream.read(buffer, 0, 10));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 5001, 5011), Arrays.copyOf(buffer, 10)));
+        assertEquals(data.length - 5011, inputStream.available());
+        assertEquals(data.length - 5011, inputStream.skip(data.length));
+        assertEquals(0, inputStream.skip(10));
+        assertEquals(-1, inputStream.read());
+
+        // transfer and read all
+        inputStream = new ChunkContainerInputStream(chunkContainer);
+        inputStream.skip(123);
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        assertEquals(data.length - 123, inputStream.transferTo(transferred));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 123, data.length), transferred.toByteArray()));
+        assertTrue(Arrays.equals(data, new ChunkContainerInputStream(chunkContainer).readAll()));
+    }
+
+    private List<Integer> splitBytewise(ChunkSplitter splitter, byte[] data) {
+        List<Integer> boundaries = new ArrayList<>();
+        splitter.reset();
+        for (int i = 0; i < data.length; i++) {
+            if (splitter.update(data[i])) {
+                boundaries.add(i + 1);
+                splitter.reset();
+            }
+        }
+        return boundaries;
+    }
+
+    private List<Integer> splitBlockwise(ChunkSplitter splitter, byte[] data, int blockSize) {
+        List<Integer> boundaries = new ArrayList<>();
+        splitter.reset();
+        for (int blockStart = 0; blockStart < data.length; blockStart += blockSize) {
+            int blockEnd = Math.min(data.length, blockStart + blockSize);
+            int offset = blockStart;
+            while (offset < blockEnd) {
+                int boundary = splitter.findBoundary(data, offset, blockEnd - offset);
+                if (boundary < 0)
+                    break;
+                boundaries.add(boundary);
+                splitter.reset();
+                offset = boundary;
+            }
+        }
+        return boundaries;
+    }
+
+    private BoxPointer writeContainer(String dirName, byte[] data, boolean bytewise, int overwritePosition,
+                                      byte[] overwrite) throws Exception {
+        final ChunkSplitter dataSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        final ChunkSplitter nodeSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        ChunkContainer chunkContainer = prepareContainer(dirName, "test", nodeSplitter);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer, dataSplitter);
+        if (bytewise) {
+            for (byte b : data)
+                outputStream.write(b);
+        } else
+            outputStream.write(data);
+        outputStream.seek(overwritePosition);
+        if (bytewise) {
+            for (byte b : overwrite)
+                outputStream.write(b);
+        } else
+            outputStream.write(overwrite, 0, overwrite.length);
+        outputStream.close();
+        chunkContainer.flush(false);
+        return chunkContainer.getBoxPointer();
+    }
+
+    public void testBulkWrite() throws Exception {
+        byte[] data = new byte[300 * 1000];
+        new Random(2).nextBytes(data);
+
+        // bulk boundaries are the same as the byte wise boundaries, also across block borders
+        ChunkSplitter[] splitters = {new RabinSplitter(RabinSplitter.CHUNK_1KB, 128),
+                new RabinSplitter(RabinSplitter.CHUNK_8KB, RabinSplitter.CHUNK_1KB, 3 * RabinSplitter.CHUNK_8KB),
+                new FixedBlockSplitter(1000)};
+        for (ChunkSplitter splitter : splitters) {
+            List<Integer> expected = splitBytewise(splitter, data);
+            assertTrue(expected.size() > 10);
+            for (int blockSize : new int[]{1, 37, 4096, data.length})
+                assertEquals(expected, splitBlockwise(splitter, data, blockSize));
+        }
+
+        // the bulk write creates the same container as the byte wise write
+        byte[] overwrite = new byte[5000];
+        new Random(3).nextBytes(overwrite);
+        BoxPointer expected = writeContainer("testBulkWriteDir1", data, true, 123456, overwrite);
+        BoxPointer pointer = writeContainer("testBulkWriteDir2", data, false, 123456, overwrite);
+        assertEquals(expected, pointer);
+
+        ChunkContainer chunkContainer = openContainer("testBulkWriteDir2", "test", pointer);
+        byte[] expectedData = Arrays.copyOf(data, data.length);
+        System.arraycopy(overwrite, 0, expectedData, 123456, overwrite.length);
+        assertTrue(Arrays.equals(expectedData, new ChunkContainerInputStream(chunkContainer).readAll()));
+    }
+
+    public void testReadAhead() throws Exception {
+        byte[] data = new byte[200 * 1000];
+        new Random(4).nextBytes(data);
+
+        final String dirName = "testReadAheadDir";
+        final String name = "test";
+        final ChunkSplitter dataSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        final ChunkSplitter nodeSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        ChunkContainer chunkContainer = prepareContainer(dirName, name, nodeSplitter);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer, dataSplitter);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+        BoxPointer pointer = chunkContainer.getBoxPointer();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int window : new int[]{1, 8}) {
+                chunkContainer = openContainer(dirName, name, pointer);
+                ChunkContainerInputStream inputStream = new ChunkContainerInputStream(chunkContainer, executor,
+                        window);
+                assertTrue(Arrays.equals(data, inputStream.readAll()));
+                inputStream.close();
+
+                // seek backwards and skip forwards
+                chunkContainer = openContainer(dirName, name, pointer);
+                inputStream = new ChunkContainerInputStream(chunkContainer, executor, window);
+                byte[] buffer = new byte[3000];
+                assertEquals(buffer.length, inputStream.read(buffer, 0, buffer.length));
+                inputStream.seek(100000);
+                assertEquals(data[100000] & 0xff, inputStream.read());
+                inputStream.seek(10);
+                assertEquals(buffer.length, inputStream.read(buffer, 0, buffer.length));
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, 10 + buffer.length), buffer));
+                assertEquals(50000, inputStream.skip(50000));
+                ByteArrayOutputStream rest = new ByteArrayOutputStream();
+                inputStream.transferTo(rest);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10 + buffer.length + 50000, data.length),
+                        rest.toByteArray()));
+                inputStream.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void verifyRandomAccess(ChunkContainer chunkContainer, byte[] data, Random random) throws Exception {
+        List<Long> chunkPositions = new ArrayList<>();
+        Iterator<ChunkContainer.DataChunkPointer> iter = chunkContainer.getChunkIterator(0);
+        while (iter.hasNext())
+            chunkPositions.add(iter.next().position);
+
+        for (int i = 0; i < 2000; i++) {
+            long position = random.nextInt(data.length);
+            ChunkContainer.DataChunkPointer pointer = chunkContainer.get(position);
+            int chunkIndex = Collections.binarySearch(chunkPositions, position);
+            if (chunkIndex < 0)
+                chunkIndex = -chunkIndex - 2;
+            assertEquals((long)chunkPositions.get(chunkIndex), pointer.position);
+            assertEquals(data[(int)position], pointer.getDataChunk().getData()[(int)(position - pointer.position)]);
+        }
+    }
+
+    public void testRandomAccess() throws Exception {
+        byte[] data = new byte[500 * 1000];
+        Random random = new Random(5);
+        random.nextBytes(data);
+
+        final String dirName = "testRandomAccessDir";
+        final String name = "test";
+        final ChunkSplitter dataSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        // small nodes for a deep tree
+        final ChunkSplitter nodeSplitter = new RabinSplitter(128, 48);
+        ChunkContainer chunkContainer = prepareContainer(dirName, name, nodeSplitter);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer, dataSplitter);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+        assertTrue(chunkContainer.getNLevels() > 3);
+        assertEquals(data.length, chunkContainer.getDataLength());
+        verifyRandomAccess(chunkContainer, data, random);
+
+        chunkContainer = openContainer(dirName, name, chunkContainer.getBoxPointer());
+        verifyRandomAccess(chunkContainer, data, random);
+
+        // the offsets are updated after editing; overwrite the middle and append
+        byte[] overwrite = new byte[20000];
+        random.nextBytes(overwrite);
+        outputStream = new ChunkContainerOutputStream(chunkContainer, dataSplitter);
+        outputStream.seek(250000);
+        outputStream.write(overwrite);
+        outputStream.close();
+        System.arraycopy(overwrite, 0, data, 250000, overwrite.length);
+        assertEquals(data.length, chunkContainer.getDataLength());
+        verifyRandomAccess(chunkContainer, data, random);
+        outputStream = new ChunkContainerOutputStream(chunkContainer, dataSplitter);
+        outputStream.write(overwrite);
+        outputStream.close();
+        data = Arrays.copyOf(data, data.length + overwrite.length);
+        System.arraycopy(overwrite, 0, data, data.length - overwrite.length, overwrite.length);
+        assertEquals(data.length, chunkContainer.getDataLength());
+        verifyRandomAccess(chunkContainer, data, random);
+        chunkContainer.flush(false);
+        verifyRandomAccess(chunkContainer, data, random);
+        assertTrue(Arrays.equals(data, new ChunkContainerInputStream(chunkContainer).readAll()));
+    }
+
+    public void testPipelinedWrite() throws Exception {
+        byte[] data = new byte[300 * 1000];
+        Random random = new Random(6);
+        random.nextBytes(data);
+        byte[] more = new byte[50 * 1000];
+        random.nextBytes(more);
+
+        final ChunkSplitter dataSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        final ChunkSplitter nodeSplitter = new RabinSplitter(RabinSplitter.CHUNK_1KB, 128);
+        ChunkContainer expected = prepareContainer("testPipelinedWriteDir1", "test", nodeSplitter);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(expected, dataSplitter);
+        outputStream.write(data);
+        outputStream.close();
+        outputStream = new ChunkContainerOutputStream(expected, dataSplitter);
+        outputStream.write(more);
+        outputStream.seek(1000);
+        outputStream.write(more);
+        outputStream.close();
+        expected.flush(false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ChunkContainer chunkContainer = prepareContainer("testPipelinedWriteDir2", "test", nodeSplitter);
+            outputStream = new ChunkContainerOutputStream(chunkContainer, dataSplitter, executor, 4);
+            outputStream.write(data);
+            outputStream.flush();
+            assertEquals(data.length, outputStream.length());
+            outputStream.close();
+            // append, then overwrite
+            outputStream = new ChunkContainerOutputStream(chunkContainer, dataSplitter, executor, 4);
+            outputStream.write(more);
+            outputStream.seek(1000);
+            outputStream.write(more);
+            outputStream.close();
+            chunkContainer.flush(false);
+            assertEquals(expected.getBoxPointer(), chunkContainer.getBoxPointer());
+
+            byte[] expectedData = Arrays.copyOf(data, data.length + more.length);
+            System.arraycopy(more, 0, expectedData, data.length, more.length);
+            System.arraycopy(more, 0, expectedData, 1000, more.length);
+            chunkContainer = openContainer("testPipelinedWriteDir2", "test", chunkContainer.getBoxPointer());
+            assertTrue(Arrays.equals(expectedData, new ChunkContainerInputStream(chunkContainer).readAll()));
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
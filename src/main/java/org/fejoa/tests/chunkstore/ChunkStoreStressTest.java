@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.tests.chunkstore;
+
+import junit.framework.TestCase;
+import org.fejoa.chunkstore.ChunkStore;
+import org.fejoa.chunkstore.HashValue;
+import org.fejoa.library.support.StorageLib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+public class ChunkStoreStressTest extends TestCase {
+    final List<String> cleanUpFiles = new ArrayList<String>();
+
+    final static int N_CHUNKS = 2000;
+    final static int N_READS = 40000;
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        for (String dir : cleanUpFiles)
+            StorageLib.recursiveDeleteFile(new File(dir));
+    }
+
+    class ReaderThread extends Thread {
+        final ChunkStore chunkStore;
+        final List<HashValue> hashes;
+        final List<byte[]> dataList;
+        final int nReads;
+        final Random random;
+        Throwable error;
+
+        ReaderThread(ChunkStore chunkStore, List<HashValue> hashes, List<byte[]> dataList, int nReads, int seed) {
+            this.chunkStore = chunkStore;
+            this.hashes = hashes;
+            this.dataList = dataList;
+            this.nReads = nReads;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < nReads; i++) {
+                    int index = random.nextInt(hashes.size());
+                    byte[] chunk = chunkStore.getChunk(hashes.get(index));
+                    if (!Arrays.equals(dataList.get(index), chunk))
+                        throw new Exception("Unexpected chunk data");
+                }
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+    }
+
+    private void readConcurrently(ChunkStore chunkStore, List<HashValue> hashes, List<byte[]> dataList,
+                                    int nThreads) throws Exception {
+        List<ReaderThread> threads = new ArrayList<>();
+        for (int i = 0; i < nThreads; i++)
+            threads.add(new ReaderThread(chunkStore, hashes, dataList, N_READS / nThreads, i));
+
+        for (ReaderThread thread : threads)
+            thread.start();
+        for (ReaderThread thread : threads)
+            thread.join();
+
+        for (ReaderThread thread : threads) {
+            if (thread.error != null)
+                throw new Exception(thread.error);
+        }
+    }
+
+    public void testConcurrentReads() throws Exception {
+        String dirName = "testConcurrentReadsDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        final ChunkStore chunkStore = ChunkStore.create(dir, "test", ChunkStore.Settings.getConcurrent());
+        final ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        final Random random = new Random(1);
+        List<HashValue> hashes = new ArrayList<>();
+        List<byte[]> dataList = new ArrayList<>();
+        for (int i = 0; i < N_CHUNKS; i++) {
+            byte[] data = new byte[1024 + random.nextInt(4 * 1024)];
+            random.nextBytes(data);
+            dataList.add(data);
+            hashes.add(transaction.put(data).key);
+        }
+        transaction.commit();
+        hashes = Collections.unmodifiableList(hashes);
+        dataList = Collections.unmodifiableList(dataList);
+
+        // append new chunks while reading
+        final AtomicBoolean stopWriting = new AtomicBoolean(false);
+        final List<Throwable> writerErrors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ChunkStore.Transaction writeTransaction = chunkStore.openTransaction();
+                    while (!stopWriting.get()) {
+                        byte[] data = new byte[1024];
+                        random.nextBytes(data);
+                        HashValue hash = writeTransaction.put(data).key;
+                        if (!Arrays.equals(data, chunkStore.getChunk(hash)))
+                            throw new Exception("Unexpected chunk data");
+                    }
+                    writeTransaction.commit();
+                } catch (Throwable e) {
+                    writerErrors.add(e);
+                }
+            }
+        };
+        writer.start();
+
+        int nThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        readConcurrently(chunkStore, hashes, dataList, 1);
+        readConcurrently(chunkStore, hashes, dataList, nThreads);
+
+        stopWriting.set(true);
+        writer.join();
+        assertTrue(writerErrors.isEmpty());
+    }
+}
@@ -8,15 +8,30 @@
 package org.fejoa.tests.chunkstore;
 
 import junit.framework.TestCase;
+import org.fejoa.chunkstore.BloomFilter;
+import org.fejoa.chunkstore.ChunkCache;
+import org.fejoa.chunkstore.ChunkIndex;
 import org.fejoa.chunkstore.ChunkStore;
 import org.fejoa.chunkstore.HashValue;
+import org.fejoa.chunkstore.PackFile;
+import org.fejoa.chunkstore.PackIndexRebuilder;
 import org.fejoa.chunkstore.PutResult;
+import org.fejoa.chunkstore.ShardedChunkStore;
+import org.fejoa.chunkstore.WriteAheadLog;
 import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.support.StorageLib;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
 
 public class ChunkStoreTest  extends TestCase {
     final List<String> cleanUpFiles = new ArrayList<String>();
@@ -46,4 +61,725 @@ public class ChunkStoreTest  extends TestCase {
         assertEquals(new String(data1), new String(chunkStore.getChunk(result1.key)));
         assertEquals(new String(data2), new String(chunkStore.getChunk(result2.key)));
     }
+
+    public void testMappedRead() throws Exception {
+        String dirName = "testMappedDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getMapped();
+        // small segments so that chunks cross segment borders
+        settings.mappedSegmentSize = 64;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 20; i++) {
+            byte[] data = ("Test Data " + i).getBytes();
+            dataList.add(data);
+            hashes.add(transaction.put(data).key);
+            // read while the pack is growing
+            for (int a = 0; a <= i; a++)
+                assertEquals(new String(dataList.get(a)), new String(chunkStore.getChunk(hashes.get(a))));
+        }
+        transaction.commit();
+
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        for (int i = 0; i < dataList.size(); i++)
+            assertEquals(new String(dataList.get(i)), new String(chunkStore.getChunk(hashes.get(i))));
+    }
+
+    public void testTransaction() throws Exception {
+        String dirName = "testTransactionDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        byte[] data1 = "Committed".getBytes();
+        HashValue hash1 = transaction.put(data1).key;
+        assertTrue(transaction.put(data1).wasInDatabase);
+        // pending chunks can already be read
+        assertEquals(new String(data1), new String(chunkStore.getChunk(hash1)));
+        transaction.commit();
+
+        transaction = chunkStore.openTransaction();
+        byte[] data2 = "Not committed".getBytes();
+        HashValue hash2 = transaction.put(data2).key;
+        assertTrue(transaction.contains(hash2));
+
+        // reopen without committing the second transaction
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(new String(data1), new String(chunkStore.getChunk(hash1)));
+        assertNull(chunkStore.getChunk(hash2));
+        assertFalse(chunkStore.hasChunk(hash2));
+    }
+
+    public void testRecovery() throws Exception {
+        String dirName = "testRecoveryDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.create(dir, "test");
+
+        // simulate a crash after the log has been committed but before the chunks went into the pack
+        byte[] data1 = "Committed".getBytes();
+        HashValue hash1 = new HashValue(CryptoHelper.sha256Hash(data1));
+        byte[] data2 = "Not committed".getBytes();
+        HashValue hash2 = new HashValue(CryptoHelper.sha256Hash(data2));
+        RandomAccessFile logFile = new RandomAccessFile(new File(dir, "test.wal"), "rw");
+        WriteAheadLog writeAheadLog = new WriteAheadLog(logFile);
+        writeAheadLog.open(hash1.size());
+        writeAheadLog.append(hash1, data1);
+        writeAheadLog.commit(new WriteAheadLog.IApplier() {
+            @Override
+            public void apply(HashValue hash, byte[] data) throws IOException {
+                // crash
+            }
+        });
+        writeAheadLog.append(hash2, data2);
+        logFile.close();
+
+        ChunkStore chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(new String(data1), new String(chunkStore.getChunk(hash1)));
+        assertNull(chunkStore.getChunk(hash2));
+    }
+
+    public void testRecoveryAfterLostPackWrites() throws Exception {
+        String dirName = "testRecoveryAfterLostPackWritesDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.chunkCacheSize = 0;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 100; i++) {
+            byte[] data = ("Synced chunk " + i).getBytes();
+            dataList.add(data);
+            hashes.add(transaction.put(data).key);
+        }
+        transaction.commit();
+        // opening the store syncs the pack and clears the log
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        File packFile = new File(dir, "test.pack");
+        long syncedLength = packFile.length();
+        transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 100; i++) {
+            byte[] data = ("Logged chunk " + i).getBytes();
+            dataList.add(data);
+            hashes.add(transaction.put(data).key);
+        }
+        transaction.commit();
+
+        // simulate a crash where the index has been written but the appended records are lost apart from a torn
+        // record header
+        RandomAccessFile packData = new RandomAccessFile(packFile, "rw");
+        packData.setLength(syncedLength);
+        packData.seek(syncedLength);
+        packData.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        packData.close();
+
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+
+        // new records must not end up behind the torn record
+        transaction = chunkStore.openTransaction();
+        byte[] data = "New chunk".getBytes();
+        dataList.add(data);
+        hashes.add(transaction.put(data).key);
+        transaction.commit();
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        PackFile pack = new PackFile(new RandomAccessFile(packFile, "r"));
+        pack.open();
+        final Set<HashValue> packed = new HashSet<>();
+        assertEquals(packFile.length(), pack.visitRecords(new PackFile.IRecordVisitor() {
+            @Override
+            public void visit(HashValue hash, long position) {
+                packed.add(hash);
+            }
+        }));
+        pack.close();
+        assertEquals(new HashSet<>(hashes), packed);
+    }
+
+    public void testBloomFilter() throws Exception {
+        String dirName = "testBloomFilterDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.useBloomFilter = true;
+        settings.bloomFilterCapacity = 1000;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<HashValue> hashes = new ArrayList<>();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 500; i++)
+            hashes.add(transaction.put(("Data " + i).getBytes()).key);
+        transaction.commit();
+
+        BloomFilter bloomFilter = chunkStore.getBloomFilter();
+        bloomFilter.resetStatistics();
+        for (HashValue hash : hashes)
+            assertTrue(chunkStore.hasChunk(hash));
+        for (int i = 0; i < 1000; i++)
+            assertFalse(chunkStore.hasChunk(new HashValue(CryptoHelper.sha256Hash(("Missing " + i).getBytes()))));
+        assertEquals(1000, bloomFilter.getNegativeCount() + bloomFilter.getFalsePositiveCount());
+        assertTrue(bloomFilter.getFalsePositiveRate() < 0.05);
+
+        // commit more chunks after the filter has been written and check that they are recovered into the filter
+        transaction = chunkStore.openTransaction();
+        for (int i = 500; i < 600; i++)
+            hashes.add(transaction.put(("Data " + i).getBytes()).key);
+        transaction.commit();
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        for (HashValue hash : hashes)
+            assertTrue(chunkStore.hasChunk(hash));
+
+        // rebuild a missing filter from the index
+        assertTrue(new File(dir, "test.bloom").delete());
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        // rebuilt from the index
+        assertTrue(chunkStore.getBloomFilter().getEntryCount() >= hashes.size());
+        for (HashValue hash : hashes)
+            assertNotNull(chunkStore.getChunk(hash));
+        for (HashValue hash : hashes)
+            assertTrue(chunkStore.hasChunk(hash));
+    }
+
+    public void testChunkCache() throws Exception {
+        String dirName = "testChunkCacheDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        // room for three chunks
+        settings.chunkCacheSize = 3 * 10;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<HashValue> hashes = new ArrayList<>();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 4; i++)
+            hashes.add(transaction.put(("Chunk " + i + "...").getBytes()).key);
+        transaction.commit();
+
+        ChunkCache cache = chunkStore.getChunkCache();
+        cache.resetStatistics();
+        for (int i = 0; i < 3; i++)
+            assertEquals("Chunk " + i + "...", new String(chunkStore.getChunk(hashes.get(i))));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(30, cache.getSize());
+
+        // chunk 0 becomes the most recently used one
+        assertEquals("Chunk 0...", new String(chunkStore.getChunk(hashes.get(0))));
+        assertEquals(1, cache.getHitCount());
+        // evicts chunk 1
+        assertEquals("Chunk 3...", new String(chunkStore.getChunk(hashes.get(3))));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getEntryCount());
+
+        assertEquals("Chunk 0...", new String(chunkStore.getChunk(hashes.get(0))));
+        assertEquals(2, cache.getHitCount());
+        assertEquals("Chunk 1...", new String(chunkStore.getChunk(hashes.get(1))));
+        assertEquals(5, cache.getMissCount());
+        assertEquals(2, cache.getEvictionCount());
+    }
+
+    public void testCompression() throws Exception {
+        String dirName = "testCompressionDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        List<byte[]> dataList = new ArrayList<>();
+        dataList.add(new byte[0]);
+        dataList.add("abc".getBytes());
+        String text = "";
+        for (int i = 0; i < 100; i++)
+            text += "{\"command\": \"update\", \"id\": " + i + "}";
+        dataList.add(text.getBytes());
+        // doesn't compress
+        byte[] random = new byte[1000];
+        new Random(1).nextBytes(random);
+        dataList.add(random);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.packCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+        settings.chunkCacheSize = 0;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<HashValue> hashes = new ArrayList<>();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (byte[] data : dataList) {
+            hashes.add(transaction.put(data).key);
+            assertEquals(new HashValue(CryptoHelper.sha256Hash(data)), hashes.get(hashes.size() - 1));
+        }
+        transaction.commit();
+
+        long rawSize = 0;
+        for (byte[] data : dataList)
+            rawSize += data.length;
+        assertTrue(new File(dir, "test.pack").length() < rawSize);
+
+        for (PackFile.ReadMode readMode : PackFile.ReadMode.values()) {
+            settings.packReadMode = readMode;
+            chunkStore = ChunkStore.open(dir, "test", settings);
+            for (int i = 0; i < dataList.size(); i++)
+                assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        }
+    }
+
+    public void testSealPack() throws Exception {
+        String dirName = "testSealPackDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.sealPackSize = 2000;
+        settings.useBloomFilter = true;
+        settings.chunkCacheSize = 0;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int transactionIndex = 0; transactionIndex < 10; transactionIndex++) {
+            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+            for (int i = 0; i < 20; i++) {
+                byte[] data = ("Transaction " + transactionIndex + " chunk " + i).getBytes();
+                dataList.add(data);
+                hashes.add(transaction.put(data).key);
+            }
+            transaction.commit();
+        }
+        assertTrue(chunkStore.getSealedPackCount() > 1);
+        // chunks in sealed packs are not stored again
+        assertTrue(chunkStore.openTransaction().put(dataList.get(0)).wasInDatabase);
+        for (int i = 0; i < dataList.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        assertFalse(chunkStore.hasChunk(new HashValue(CryptoHelper.sha256Hash("Missing".getBytes()))));
+
+        // reopen and rebuild the bloom filter from all packs
+        int nSealedPacks = chunkStore.getSealedPackCount();
+        assertTrue(new File(dir, "test.bloom").delete());
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        assertEquals(nSealedPacks, chunkStore.getSealedPackCount());
+        for (int i = 0; i < dataList.size(); i++) {
+            assertTrue(chunkStore.hasChunk(hashes.get(i)));
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        }
+
+        // simulate a crash after the sealed index has been written but before the active pack has been renamed
+        settings.sealPackSize = 0;
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        byte[] data = "Last chunk".getBytes();
+        dataList.add(data);
+        hashes.add(transaction.put(data).key);
+        transaction.commit();
+        chunkStore.sealPack();
+        assertEquals(nSealedPacks + 1, chunkStore.getSealedPackCount());
+        File lastSealedPack = new File(dir, "test." + (nSealedPacks + 1) + ".pack");
+        File activePack = new File(dir, "test.pack");
+        assertTrue(activePack.delete());
+        assertTrue(lastSealedPack.renameTo(activePack));
+
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        assertTrue(lastSealedPack.exists());
+        assertEquals(nSealedPacks + 1, chunkStore.getSealedPackCount());
+        for (int i = 0; i < dataList.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+    }
+
+    public void testCompaction() throws Exception {
+        String dirName = "testCompactionDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.sealPackSize = 0;
+        settings.chunkCacheSize = 0;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int packIndex = 0; packIndex < 3; packIndex++) {
+            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+            for (int i = 0; i < 20; i++) {
+                byte[] data = ("Pack " + packIndex + " chunk " + i).getBytes();
+                dataList.add(data);
+                hashes.add(transaction.put(data).key);
+            }
+            transaction.commit();
+            chunkStore.sealPack();
+        }
+        assertEquals(3, chunkStore.getSealedPackCount());
+
+        // pack 0: all live, pack 1: mostly dead, pack 2: all dead
+        Set<HashValue> live = new HashSet<>();
+        for (int i = 0; i < 20; i++)
+            live.add(hashes.get(i));
+        live.add(hashes.get(20));
+
+        ChunkStore.Compaction compaction = chunkStore.startCompaction();
+        try {
+            chunkStore.startCompaction();
+            fail();
+        } catch (IOException e) {
+        }
+        // a transaction that references an existing chunk during the compaction protects it
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        assertTrue(transaction.put(dataList.get(21)).wasInDatabase);
+        assertTrue(transaction.contains(hashes.get(22)));
+        transaction.commit();
+        assertTrue(compaction.compact(live) > 0);
+
+        assertEquals(2, chunkStore.getSealedPackCount());
+        for (int i = 0; i < hashes.size(); i++) {
+            boolean expected = i < 23;
+            assertEquals(expected, chunkStore.hasChunk(hashes.get(i)));
+            if (expected)
+                assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        }
+
+        // nothing left to compact; throttled compaction still works
+        settings.compactionBytesPerSecond = 1024;
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        assertEquals(2, chunkStore.getSealedPackCount());
+        live.add(hashes.get(21));
+        live.add(hashes.get(22));
+        assertEquals(0, chunkStore.startCompaction().compact(live));
+        for (int i = 0; i < 23; i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+    }
+
+    public void testCompactionWaitsForPublishing() throws Exception {
+        String dirName = "testCompactionWaitsForPublishingDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.sealPackSize = 0;
+        settings.chunkCacheSize = 0;
+        final ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        byte[] data = "Dead till the new head is published".getBytes();
+        final HashValue hash = transaction.put(data).key;
+        transaction.commit();
+        chunkStore.sealPack();
+
+        // a new transaction references the dead chunk; the commit releases the reference before it is published
+        transaction = chunkStore.openTransaction();
+        assertTrue(transaction.put(data).wasInDatabase);
+        final Set<HashValue> live = new HashSet<>();
+        final ChunkStore.Compaction[] compaction = {null};
+        final Throwable[] compactorError = {null};
+        final Thread compactor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    compaction[0] = chunkStore.startCompaction();
+                } catch (Throwable e) {
+                    compactorError[0] = e;
+                }
+            }
+        };
+        transaction.commit(new ChunkStore.ICommitPublisher() {
+            @Override
+            public void publish() throws IOException {
+                compactor.start();
+                try {
+                    compactor.join(100);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                assertTrue(compactor.isAlive());
+                // the new head makes the chunk live
+                live.add(hash);
+            }
+        });
+        compactor.join();
+        assertNull(compactorError[0]);
+        compaction[0].compact(live);
+        assertTrue(Arrays.equals(data, chunkStore.getChunk(hash)));
+    }
+
+    public void testRebuildIndex() throws Exception {
+        String dirName = "testRebuildIndexDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.sealPackSize = 0;
+        settings.chunkCacheSize = 0;
+        settings.useBloomFilter = true;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int transactionIndex = 0; transactionIndex < 3; transactionIndex++) {
+            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+            for (int i = 0; i < 100; i++) {
+                byte[] data = ("Transaction " + transactionIndex + " chunk " + i).getBytes();
+                dataList.add(data);
+                hashes.add(transaction.put(data).key);
+            }
+            transaction.commit();
+        }
+
+        // lost index; sort in several runs
+        File indexFile = new File(dir, "test.idx");
+        long oldIndexLength = indexFile.length();
+        assertTrue(indexFile.delete());
+        assertEquals(300, ChunkStore.rebuildIndex(dir, "test", 1, new PackIndexRebuilder(dir, 64)));
+        for (String fileName : dir.list())
+            assertFalse(fileName.endsWith(".run") || fileName.endsWith(".new"));
+        // the bulk loaded index is packed tighter than the incrementally built one
+        assertTrue(indexFile.length() < oldIndexLength);
+
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        assertFalse(chunkStore.hasChunk(new HashValue(CryptoHelper.sha256Hash("missing".getBytes()))));
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        byte[] newData = "New chunk".getBytes();
+        HashValue newHash = transaction.put(newData).key;
+        transaction.commit();
+
+        // damaged index; sort in memory
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        index.seek(0);
+        index.write(new byte[64]);
+        index.close();
+        assertEquals(301, ChunkStore.rebuildIndex(dir, "test", 0.7));
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        assertTrue(Arrays.equals(newData, chunkStore.getChunk(newHash)));
+    }
+
+    public void testCompactIndex() throws Exception {
+        String dirName = "testCompactIndexDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.chunkCacheSize = 0;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // a transaction per chunk leaves many deleted index tiles
+            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+            byte[] data = ("Chunk " + i).getBytes();
+            dataList.add(data);
+            hashes.add(transaction.put(data).key);
+            transaction.commit();
+        }
+        long indexLength = new File(dir, "test.idx").length();
+        assertTrue(chunkStore.compactIndex() > 0);
+        assertTrue(new File(dir, "test.idx").length() < indexLength);
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+    }
+
+    public void testExtensibleHashIndex() throws Exception {
+        String dirName = "testExtensibleHashIndexDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.indexType = ChunkIndex.Type.EXTENSIBLE_HASH;
+        settings.chunkCacheSize = 0;
+        settings.useBloomFilter = true;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 1000; i++) {
+            byte[] data = ("Chunk " + i).getBytes();
+            dataList.add(data);
+            hashes.add(transaction.put(data).key);
+        }
+        transaction.commit();
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        assertNull(chunkStore.getChunk(new HashValue(CryptoHelper.sha256Hash("missing".getBytes()))));
+
+        // the type is recorded in the index, i.e. the settings don't matter when opening the store
+        RandomAccessFile indexFile = new RandomAccessFile(new File(dir, "test.idx"), "r");
+        assertEquals(ChunkIndex.Type.EXTENSIBLE_HASH, ChunkIndex.Type.read(indexFile));
+        indexFile.close();
+        new File(dir, "test.bloom").delete();
+        ChunkStore.Settings openSettings = ChunkStore.Settings.getDefault();
+        openSettings.useBloomFilter = true;
+        chunkStore = ChunkStore.open(dir, "test", openSettings);
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+        // rebuilt from the index
+        assertTrue(chunkStore.getBloomFilter().getEntryCount() >= hashes.size());
+
+        // the new active pack uses the same index type
+        chunkStore.sealPack();
+        transaction = chunkStore.openTransaction();
+        byte[] newData = "new chunk".getBytes();
+        HashValue newHash = transaction.put(newData).key;
+        transaction.commit();
+        indexFile = new RandomAccessFile(new File(dir, "test.idx"), "r");
+        assertEquals(ChunkIndex.Type.EXTENSIBLE_HASH, ChunkIndex.Type.read(indexFile));
+        indexFile.close();
+        chunkStore = ChunkStore.open(dir, "test", openSettings);
+        assertTrue(Arrays.equals(newData, chunkStore.getChunk(newHash)));
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+    }
+
+    /**
+     * Simulates a crash that damaged the synced part of the index, i.e. all index data after the index header is lost.
+     */
+    private void verifyIndexCrash(String dirName, ChunkIndex.Type indexType, long headerSize) throws Exception {
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.indexType = indexType;
+        settings.chunkCacheSize = 0;
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", settings);
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 500; i++) {
+            byte[] data = ("Synced chunk " + i).getBytes();
+            dataList.add(data);
+            hashes.add(transaction.put(data).key);
+        }
+        transaction.commit();
+        // opening the store syncs the index and clears the log
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 500; i++) {
+            byte[] data = ("Logged chunk " + i).getBytes();
+            dataList.add(data);
+            hashes.add(transaction.put(data).key);
+        }
+        transaction.commit();
+
+        File indexFile = new File(dir, "test.idx");
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        index.seek(headerSize);
+        index.write(new byte[(int)(index.length() - headerSize)]);
+        index.close();
+
+        chunkStore = ChunkStore.open(dir, "test", settings);
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), chunkStore.getChunk(hashes.get(i))));
+    }
+
+    public void testExtensibleHashIndexCrash() throws Exception {
+        // a crash while splitting buckets in place
+        verifyIndexCrash("testExtensibleHashIndexCrashDir", ChunkIndex.Type.EXTENSIBLE_HASH, 2 + 8);
+    }
+
+    public void testBPlusTreeIndexCrash() throws Exception {
+        // freed tiles of the synced tree have been reused before the crash
+        verifyIndexCrash("testBPlusTreeIndexCrashDir", ChunkIndex.Type.BPLUS_TREE, 2 * 4 + 8 + 8 + 4 + 8);
+    }
+
+    public void testShardedChunkStore() throws Exception {
+        String dirName = "testShardedChunkStoreDir";
+        cleanUpFiles.add(dirName);
+        List<File> dirs = new ArrayList<>();
+        dirs.add(new File(dirName, "disk1"));
+        dirs.add(new File(dirName, "disk2"));
+        for (File dir : dirs)
+            dir.mkdirs();
+
+        try {
+            ShardedChunkStore.create(dirs, "test", 3, ChunkStore.Settings.getDefault());
+            fail();
+        } catch (IOException e) {
+        }
+
+        final ShardedChunkStore chunkStore = ShardedChunkStore.create(dirs, "test", 4,
+                ChunkStore.Settings.getDefault());
+        // concurrent writers
+        final int nThreads = 4;
+        final int nChunks = 200;
+        final List<List<HashValue>> threadHashes = new ArrayList<>();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            final int threadIndex = t;
+            final List<HashValue> hashes = new ArrayList<>();
+            threadHashes.add(hashes);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+                        for (int i = 0; i < nChunks; i++)
+                            hashes.add(transaction.put(("Thread " + threadIndex + " chunk " + i).getBytes()).key);
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(errors.isEmpty());
+        chunkStore.openTransaction().commit();
+
+        // batch put keeps the order of the chunks
+        List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            batch.add(("Batch chunk " + i).getBytes());
+        batch.add("Thread 0 chunk 0".getBytes());
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> results = transaction.putAll(batch);
+        assertTrue(transaction.contains(results.get(0).key));
+        transaction.commit();
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(i == batch.size() - 1, results.get(i).wasInDatabase);
+            assertTrue(Arrays.equals(batch.get(i), chunkStore.getChunk(results.get(i).key)));
+        }
+
+        ShardedChunkStore reopened = ShardedChunkStore.open(dirs, "test", ChunkStore.Settings.getDefault());
+        assertEquals(4, reopened.getShardCount());
+        for (int shard = 0; shard < reopened.getShardCount(); shard++)
+            assertTrue(new File(dirs.get(shard % 2), "test.shard" + shard + ".pack").length() > 8);
+        for (int t = 0; t < nThreads; t++) {
+            for (int i = 0; i < nChunks; i++) {
+                HashValue hash = threadHashes.get(t).get(i);
+                assertTrue(reopened.hasChunk(hash));
+                assertEquals("Thread " + t + " chunk " + i, new String(reopened.getChunk(hash)));
+            }
+        }
+        assertFalse(reopened.hasChunk(new HashValue(CryptoHelper.sha256Hash("Missing".getBytes()))));
+
+        try {
+            ShardedChunkStore.open(dirs.subList(0, 1), "test", ChunkStore.Settings.getDefault());
+            fail();
+        } catch (IOException e) {
+        }
+    }
 }
@@ -9,7 +9,9 @@ package org.fejoa.tests.chunkstore;
 
 
 import junit.framework.TestCase;
+import org.fejoa.chunkstore.BaseBPlusTree;
 import org.fejoa.chunkstore.ExtensibleHashMap;
+import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.support.StorageLib;
 
 import java.io.File;
@@ -161,4 +163,77 @@ public class ExtensibleHashMapTest extends TestCase {
         hashMap.put("00000000", 0l);
         hashMap.print();
     }
+
+    public void testManyEntries() throws Exception {
+        String fileName = "testManyEntries.idx";
+        cleanUpFiles.add(fileName);
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        ExtensibleHashMap hashMap = new ExtensibleHashMap();
+        hashMap.create(file, 2, (short)32, (short)16);
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            byte[] hash = CryptoHelper.sha256Hash(("entry " + i).getBytes());
+            hashes.add(hash);
+            hashMap.put(hash, (long)i);
+        }
+        assertTrue(hashMap.directorySize() > 1024);
+        for (int i = 0; i < hashes.size(); i++)
+            assertEquals(i, hashMap.get(hashes.get(i)).longValue());
+        assertNull(hashMap.get(CryptoHelper.sha256Hash("missing".getBytes())));
+
+        final long[] sum = {0};
+        final int[] count = {0};
+        hashMap.visitEntries(new BaseBPlusTree.IEntryVisitor<Long>() {
+            @Override
+            public void visit(byte[] key, Long value) {
+                sum[0] += value;
+                count[0]++;
+            }
+        });
+        assertEquals(hashes.size(), count[0]);
+        assertEquals((long)hashes.size() * (hashes.size() - 1) / 2, sum[0]);
+
+        file.close();
+        file = new RandomAccessFile(fileName, "rw");
+        hashMap = new ExtensibleHashMap();
+        hashMap.open(file, 2);
+        for (int i = 0; i < hashes.size(); i++)
+            assertEquals(i, hashMap.get(hashes.get(i)).longValue());
+        file.close();
+    }
+
+    public void testSmallMappedSegments() throws Exception {
+        String fileName = "testSmallMappedSegments.idx";
+        cleanUpFiles.add(fileName);
+
+        // buckets span segment boundaries
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        ExtensibleHashMap hashMap = new ExtensibleHashMap();
+        hashMap.setMappedSegmentSize(1000);
+        hashMap.create(file, 0, (short)32, (short)16);
+        List<byte[]> hashes = new ArrayList<>();
+        List<Long> values = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            hashes.add(CryptoHelper.sha256Hash(("entry " + i).getBytes()));
+            values.add((long)i);
+        }
+        hashMap.putAll(hashes.subList(0, 2500), values.subList(0, 2500));
+        for (int i = 2500; i < hashes.size(); i++)
+            hashMap.put(hashes.get(i), values.get(i));
+        for (int i = 0; i < hashes.size(); i++)
+            assertEquals(i, hashMap.get(hashes.get(i)).longValue());
+        int directorySize = hashMap.directorySize();
+        file.close();
+
+        file = new RandomAccessFile(fileName, "rw");
+        hashMap = new ExtensibleHashMap();
+        hashMap.setMappedSegmentSize(1000);
+        hashMap.open(file, 0);
+        assertEquals(directorySize, hashMap.directorySize());
+        for (int i = 0; i < hashes.size(); i++)
+            assertEquals(i, hashMap.get(hashes.get(i)).longValue());
+        assertNull(hashMap.get(CryptoHelper.sha256Hash("missing".getBytes())));
+        file.close();
+    }
 }
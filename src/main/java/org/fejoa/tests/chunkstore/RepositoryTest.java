@@ -13,6 +13,9 @@ import org.fejoa.library.support.StreamHelper;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 public class RepositoryTest extends RepositoryTestBase {
@@ -236,4 +239,100 @@ public class RepositoryTest extends RepositoryTestBase {
 
         containsContent(repository, content);
     }
+
+    public void testShardedRepository() throws Exception {
+        String branch = "repoBranch";
+        String name = "repoSharded";
+        File directory = new File("RepoTest");
+        cleanUpFiles.add(directory.getName());
+        directory.mkdirs();
+
+        ChunkStore chunkStore = ShardedChunkStore.create(directory, name, 4);
+        IRepoChunkAccessors accessors = getRepoChunkAccessors(chunkStore);
+        Repository repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+
+        List<DatabaseStingEntry> content = new ArrayList<>();
+        add(repository, content, new DatabaseStingEntry("file1", "file1"));
+        add(repository, content, new DatabaseStingEntry("dir1/file2", "file2"));
+        add(repository, content, new DatabaseStingEntry("dir1/sub1/file3", "file3"));
+        repository.commit();
+
+        containsContent(repository, content);
+    }
+
+    public void testCompaction() throws Exception {
+        String branch = "repoBranch";
+        String name = "repoCompaction";
+        File directory = new File("RepoTest");
+        cleanUpFiles.add(directory.getName());
+        directory.mkdirs();
+
+        ChunkStore.Settings settings = ChunkStore.Settings.getDefault();
+        settings.sealPackSize = 0;
+        final ChunkStore chunkStore = ChunkStore.create(directory, name, settings);
+        final IRepoChunkAccessors accessors = getRepoChunkAccessors(chunkStore);
+        final Repository repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+
+        List<DatabaseStingEntry> content = new ArrayList<>();
+        add(repository, content, new DatabaseStingEntry("file1", "file1"));
+        add(repository, content, new DatabaseStingEntry("dir1/file2", "file2"));
+        repository.commit();
+        add(repository, content, new DatabaseStingEntry("dir1/sub1/file3", "file3"));
+        repository.commit();
+
+        // unreachable chunks, e.g. from an abandoned transaction
+        List<HashValue> garbage = new ArrayList<>();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 100; i++)
+            garbage.add(transaction.put(("garbage " + i).getBytes()).key);
+        transaction.commit();
+        chunkStore.sealPack();
+
+        ReachableChunkCollector collector = new ReachableChunkCollector(accessors.startTransaction());
+        collector.addBranch(repository.getBranchLog(), simpleCommitCallback);
+        final Set<HashValue> reachable = collector.getReachableChunks();
+        for (HashValue hash : garbage)
+            assertFalse(reachable.contains(hash));
+
+        BackgroundCompactor compactor = new BackgroundCompactor(chunkStore,
+                new BackgroundCompactor.ILiveChunksCollector() {
+            @Override
+            public Set<HashValue> collect() throws IOException, CryptoException {
+                return reachable;
+            }
+        }, 1000);
+        assertTrue(compactor.runOnce() > 0);
+        assertEquals(1, chunkStore.getSealedPackCount());
+        for (HashValue hash : garbage)
+            assertFalse(chunkStore.hasChunk(hash));
+        for (HashValue hash : reachable)
+            assertTrue(chunkStore.hasChunk(hash));
+
+        // walking the history again only reads compacted chunks
+        ChunkStore reopened = ChunkStore.open(directory, name, settings);
+        collector = new ReachableChunkCollector(getRepoChunkAccessors(reopened).startTransaction());
+        collector.addBranch(repository.getBranchLog(), simpleCommitCallback);
+        assertEquals(reachable, collector.getReachableChunks());
+
+        // failures in the compactor thread are reported to the owner
+        final IOException collectorError = new IOException("Collector failed");
+        BackgroundCompactor failingCompactor = new BackgroundCompactor(reopened,
+                new BackgroundCompactor.ILiveChunksCollector() {
+            @Override
+            public Set<HashValue> collect() throws IOException, CryptoException {
+                throw collectorError;
+            }
+        }, 1);
+        final BlockingQueue<Exception> reported = new LinkedBlockingQueue<>();
+        failingCompactor.setListener(new BackgroundCompactor.IListener() {
+            @Override
+            public void onException(Exception exception) {
+                reported.add(exception);
+            }
+        });
+        failingCompactor.start();
+        assertSame(collectorError, reported.poll(10, TimeUnit.SECONDS));
+        failingCompactor.stop();
+        assertSame(collectorError, failingCompactor.getLastException());
+    }
 }